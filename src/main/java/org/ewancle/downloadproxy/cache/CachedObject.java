@@ -0,0 +1,120 @@
+package org.ewancle.downloadproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.file.Path;
+
+/**
+ * 缓存的代理对象：元数据 + 响应体
+ * 内存层的响应体是堆外 ByteBuf（引用计数，淘汰时释放）；磁盘层的响应体是文件（同样引用计数，最后一个读者结束后删除），可零拷贝发送
+ */
+public final class CachedObject {
+
+    private final String key;
+
+    private final String contentType;
+
+    private final String etag;
+
+    private final String lastModified;
+
+    private final long length;
+
+    // 过期时间（epoch 毫秒）
+    private final long expiresAt;
+
+    private final ByteBuf body;
+
+    private final DiskFile file;
+
+    CachedObject(String key, String contentType, String etag, String lastModified,
+                 long length, long expiresAt, ByteBuf body, DiskFile file) {
+        this.key = key;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.expiresAt = expiresAt;
+        this.body = body;
+        this.file = file;
+    }
+
+    CachedObject withBody(ByteBuf body) {
+        return new CachedObject(key, contentType, etag, lastModified, length, expiresAt, body, null);
+    }
+
+    CachedObject withFile(DiskFile file) {
+        return new CachedObject(key, contentType, etag, lastModified, length, expiresAt, null, file);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    public String etag() {
+        return etag;
+    }
+
+    public String lastModified() {
+        return lastModified;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long expiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * 内存层响应体，磁盘层为 null
+     */
+    public ByteBuf body() {
+        return body;
+    }
+
+    /**
+     * 磁盘层文件，内存层为 null
+     */
+    public Path file() {
+        return file == null ? null : file.path();
+    }
+
+    public boolean inMemory() {
+        return body != null;
+    }
+
+    /**
+     * 尝试持有响应体（内存层的 ByteBuf 或磁盘层的文件）；已经被淘汰释放时返回 false
+     */
+    boolean tryRetain() {
+        try {
+            content().retain();
+            return true;
+        } catch (IllegalReferenceCountException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 释放一次响应体引用
+     */
+    public void release() {
+        content().release();
+    }
+
+    private ReferenceCounted content() {
+        return body != null ? body : file;
+    }
+}
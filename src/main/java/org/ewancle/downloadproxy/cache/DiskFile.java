@@ -0,0 +1,36 @@
+package org.ewancle.downloadproxy.cache;
+
+import io.netty.util.AbstractReferenceCounted;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * 磁盘层缓存文件的引用计数：磁盘索引持有一次，每个正在发送或回填的读者各持有一次
+ * 淘汰、过期只是从索引移除并释放索引的引用，文件在最后一个读者结束后才删除
+ */
+final class DiskFile extends AbstractReferenceCounted {
+
+    private final Path path;
+
+    private final Consumer<Path> deleter;
+
+    DiskFile(Path path, Consumer<Path> deleter) {
+        this.path = path;
+        this.deleter = deleter;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    @Override
+    protected void deallocate() {
+        deleter.accept(path);
+    }
+
+    @Override
+    public DiskFile touch(Object hint) {
+        return this;
+    }
+}
@@ -0,0 +1,215 @@
+package org.ewancle.downloadproxy.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+/**
+ * IP 查询结果缓存：IPv4 以 int、IPv6 以两个 long 为键，开放寻址（线性探测）存在原始类型数组里，
+ * 命中时不装箱、不分配对象。容量固定（向上取 2 的幂），每个键只在从散列位置开始的一小段窗口内探测，
+ * 窗口满时在窗口内做 clock 淘汰：被访问过的槽位清掉引用位再给一次机会，没访问过的直接替换。
+ * 槽位只会被替换、不会被删除，所以查找遇到空槽即可停止。
+ * 读用 StampedLock 乐观读，不加锁；写（未命中后填充）加写锁，写和读冲突时读退化为读锁重查。
+ */
+public final class IpLookupCache<V> {
+
+    // 每个键的探测窗口大小
+    private static final int PROBE_LIMIT = 8;
+
+    private final Table v4;
+
+    private final Table v6;
+
+    public IpLookupCache(int maxEntries) {
+        int capacity = Integer.highestOneBit(Math.max(PROBE_LIMIT, maxEntries) - 1) << 1;
+        this.v4 = new Table(capacity, 1);
+        this.v6 = new Table(capacity, 2);
+    }
+
+    public V get(int ipv4) {
+        return v4.get(0, Integer.toUnsignedLong(ipv4));
+    }
+
+    public void put(int ipv4, V value) {
+        v4.put(0, Integer.toUnsignedLong(ipv4), value);
+    }
+
+    /**
+     * @param high IPv6 地址高 64 位
+     * @param low  IPv6 地址低 64 位
+     */
+    public V get(long high, long low) {
+        return v6.get(high, low);
+    }
+
+    public void put(long high, long low, V value) {
+        v6.put(high, low, value);
+    }
+
+    public void clear() {
+        v4.clear();
+        v6.clear();
+    }
+
+    /**
+     * 遍历当前缓存的地址（换库时用来预热新缓存），遍历期间阻塞写入
+     */
+    public void forEachKey(IntConsumer ipv4Consumer, Ipv6Consumer ipv6Consumer) {
+        v4.forEachKey((high, low) -> ipv4Consumer.accept((int) low));
+        v6.forEachKey(ipv6Consumer);
+    }
+
+    public int capacity() {
+        return v4.values.length;
+    }
+
+    @FunctionalInterface
+    public interface Ipv6Consumer {
+        void accept(long high, long low);
+    }
+
+    /**
+     * 一张开放寻址表：keys 每个槽位占 width 个 long（IPv4 只用低 32 位）
+     */
+    private final class Table {
+
+        private final int width;
+
+        private final int mask;
+
+        private final long[] keys;
+
+        private final Object[] values;
+
+        // clock 引用位，命中时置 1（并发写同一个字节没有危害）
+        private final byte[] referenced;
+
+        private final StampedLock lock = new StampedLock();
+
+        // clock 指针，只在写锁内移动
+        private int hand;
+
+        Table(int capacity, int width) {
+            this.width = width;
+            this.mask = capacity - 1;
+            this.keys = new long[capacity * width];
+            this.values = new Object[capacity];
+            this.referenced = new byte[capacity];
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long high, long low) {
+            int start = index(high, low);
+            long stamp = lock.tryOptimisticRead();
+            int slot = find(start, high, low);
+            Object value = slot < 0 ? null : values[slot];
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    slot = find(start, high, low);
+                    value = slot < 0 ? null : values[slot];
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (value != null) {
+                referenced[slot] = 1;
+            }
+            return (V) value;
+        }
+
+        void put(long high, long low, V value) {
+            int start = index(high, low);
+            long stamp = lock.writeLock();
+            try {
+                // 已有这个键或窗口里还有空槽
+                for (int i = 0; i < PROBE_LIMIT; i++) {
+                    int slot = (start + i) & mask;
+                    if (values[slot] == null || matches(slot, high, low)) {
+                        store(slot, high, low, value);
+                        return;
+                    }
+                }
+                // 窗口满：clock 扫一圈，最多 PROBE_LIMIT + 1 步一定能找到引用位为 0 的槽位
+                while (true) {
+                    int slot = (start + (hand++ & (PROBE_LIMIT - 1))) & mask;
+                    if (referenced[slot] == 0) {
+                        store(slot, high, low, value);
+                        return;
+                    }
+                    referenced[slot] = 0;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                Arrays.fill(values, null);
+                Arrays.fill(referenced, (byte) 0);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEachKey(Ipv6Consumer consumer) {
+            long stamp = lock.readLock();
+            try {
+                for (int slot = 0; slot < values.length; slot++) {
+                    if (values[slot] != null) {
+                        if (width == 1) {
+                            consumer.accept(0, keys[slot]);
+                        } else {
+                            consumer.accept(keys[slot * 2], keys[slot * 2 + 1]);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private int find(int start, long high, long low) {
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (start + i) & mask;
+                if (values[slot] == null) {
+                    return -1;
+                }
+                if (matches(slot, high, low)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(int slot, long high, long low) {
+            return width == 1 ? keys[slot] == low
+                    : keys[slot * 2] == high && keys[slot * 2 + 1] == low;
+        }
+
+        private void store(int slot, long high, long low, V value) {
+            if (width == 1) {
+                keys[slot] = low;
+            } else {
+                keys[slot * 2] = high;
+                keys[slot * 2 + 1] = low;
+            }
+            values[slot] = value;
+            // 新条目不置引用位：只查一次的地址先被淘汰
+            referenced[slot] = 0;
+        }
+
+        private int index(long high, long low) {
+            // 64 位混合（murmur3 fmix64），连续地址也能均匀分布
+            long h = high * 0x9E3779B97F4A7C15L ^ low;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return (int) h & mask;
+        }
+    }
+}
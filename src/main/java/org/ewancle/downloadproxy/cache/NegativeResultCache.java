@@ -0,0 +1,102 @@
+package org.ewancle.downloadproxy.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上游未命中结果缓存：按 (主机, 路径) 记住 404/410/3xx，短时间内不再向该主机请求同一路径
+ * 扫描器反复请求不存在的路径时，所有主机都已知未命中就直接返回 404，不再逐个探测
+ */
+@Component
+public class NegativeResultCache {
+
+    @Value("${proxy.negative-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${proxy.negative-cache.ttl:30s}")
+    private Duration ttl;
+
+    @Value("${proxy.negative-cache.max-entries:100000}")
+    private long maxEntries;
+
+    private Cache<String, Integer> negatives;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder stores = new LongAdder();
+
+    private final LongAdder allNegative = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        negatives = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    /**
+     * 是否值得记为未命中：重定向、404、410
+     */
+    public static boolean isNegative(HttpStatusCode status) {
+        return status.is3xxRedirection() || status.value() == 404 || status.value() == 410;
+    }
+
+    public void record(String host, String path, HttpStatusCode status) {
+        if (enabled && isNegative(status)) {
+            negatives.put(key(host, path), status.value());
+            stores.increment();
+        }
+    }
+
+    /**
+     * 该主机上这个路径是否已知不存在
+     */
+    public boolean isNegative(String host, String path) {
+        if (!enabled || negatives.getIfPresent(key(host, path)) == null) {
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * 所有主机上这个路径都已知不存在（不计入命中次数）
+     */
+    public boolean allNegative(List<String> hosts, String path) {
+        if (!enabled || hosts.isEmpty()) {
+            return false;
+        }
+        for (String host : hosts) {
+            if (negatives.getIfPresent(key(host, path)) == null) {
+                return false;
+            }
+        }
+        allNegative.increment();
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("entries", negatives.estimatedSize());
+        stats.put("hits", hits.sum());
+        stats.put("stores", stores.sum());
+        stats.put("allHostsNegative", allNegative.sum());
+        return stats;
+    }
+
+    private static String key(String host, String path) {
+        return host + path;
+    }
+}
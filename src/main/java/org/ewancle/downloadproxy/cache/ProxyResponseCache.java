@@ -0,0 +1,579 @@
+package org.ewancle.downloadproxy.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 代理响应两级缓存：
+ * 1、内存层：Caffeine（W-TinyLFU）按字节数限量，响应体放在堆外 ByteBuf，淘汰时立即释放
+ * 2、磁盘层：响应体按 key 的 sha256 分目录存文件，旁边一个 .meta 记录元数据，按最近访问时间淘汰，可零拷贝发送；
+ *    文件带引用计数，淘汰、过期或被新版本替换后等正在发送的读者结束再删除
+ * 过期时间遵循上游 Cache-Control（no-store/private/no-cache 不缓存，s-maxage/max-age 优先）和 Expires
+ */
+@Component
+public class ProxyResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+    // 从内存层按块下发，避免一次写出一个超大 ByteBuf
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Value("${proxy.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${proxy.cache.memory-max-size:256MB}")
+    private DataSize memoryMaxSize;
+
+    // 单个对象上限，超过的不缓存
+    @Value("${proxy.cache.max-object-size:16MB}")
+    private DataSize maxObjectSize;
+
+    @Value("${proxy.cache.disk-dir:cache}")
+    private String diskDir;
+
+    @Value("${proxy.cache.disk-max-size:10GB}")
+    private DataSize diskMaxSize;
+
+    // 上游没有给出缓存策略时的默认有效期
+    @Value("${proxy.cache.default-ttl:1h}")
+    private Duration defaultTtl;
+
+    private Cache<String, CachedObject> memory;
+
+    private Path diskRoot;
+
+    private final Map<String, DiskEntry> diskIndex = new ConcurrentHashMap<>();
+
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private final LongAdder memoryHits = new LongAdder();
+
+    private final LongAdder diskHits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder stores = new LongAdder();
+
+    private final LongAdder memoryEvictions = new LongAdder();
+
+    private final LongAdder diskEvictions = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        memory = Caffeine.newBuilder()
+                .maximumWeight(memoryMaxSize.toBytes())
+                .weigher((String key, CachedObject value) -> (int) Math.min(Integer.MAX_VALUE, value.length()))
+                .expireAfter(Expiry.creating((String key, CachedObject value) ->
+                        Duration.ofMillis(Math.max(0, value.expiresAt() - System.currentTimeMillis()))))
+                .removalListener((String key, CachedObject value, RemovalCause cause) -> {
+                    if (value != null) {
+                        value.release();
+                    }
+                    if (cause.wasEvicted()) {
+                        memoryEvictions.increment();
+                    }
+                })
+                .build();
+
+        diskRoot = Paths.get(diskDir).toAbsolutePath().normalize();
+        Files.createDirectories(diskRoot);
+        // 重启后恢复磁盘层索引，不阻塞启动
+        Mono.fromRunnable(this::loadDiskIndex)
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (memory != null) {
+            memory.invalidateAll();
+            memory.cleanUp();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 查询缓存：先内存后磁盘，过期的顺带清理
+     * 命中时已经持有一次响应体引用（内存层的 ByteBuf 或磁盘层的文件），调用方写出后必须 release
+     * （readMemory 会自动处理），磁盘层文件在释放前不会被删除
+     */
+    public CachedObject lookup(String key) {
+        if (!enabled) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CachedObject cached = memory.getIfPresent(key);
+        if (cached != null && !cached.isExpired(now) && cached.tryRetain()) {
+            memoryHits.increment();
+            return cached;
+        }
+        DiskEntry entry = diskIndex.get(key);
+        if (entry != null) {
+            if (entry.object.isExpired(now)) {
+                removeDiskEntry(key, entry);
+            } else if (entry.object.tryRetain()) {
+                entry.lastAccess = now;
+                diskHits.increment();
+                promote(entry);
+                return entry.object;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * 把上游响应体边透传边复制到缓存；只复制不拦截，客户端照常按自己的节奏接收
+     * 完整接收后写入内存层并异步落盘，中途出错、取消或超过对象上限则放弃
+     */
+    public Flux<DataBuffer> tee(String key, HttpHeaders upstreamHeaders, Flux<DataBuffer> body) {
+        if (!enabled) {
+            return body;
+        }
+        long expiresAt = computeExpiresAt(upstreamHeaders, System.currentTimeMillis());
+        long declaredLength = upstreamHeaders.getContentLength();
+        if (expiresAt <= 0 || declaredLength > maxObjectSize.toBytes()) {
+            return body;
+        }
+        CacheHeaders meta = new CacheHeaders(upstreamHeaders);
+        Accumulator accumulator = new Accumulator(declaredLength);
+        return body
+                .doOnNext(accumulator::append)
+                .doFinally(signal -> {
+                    ByteBuf content = accumulator.finish(signal == SignalType.ON_COMPLETE);
+                    if (content != null) {
+                        store(new CachedObject(key, meta.contentType, meta.etag, meta.lastModified,
+                                content.readableBytes(), expiresAt, content, null));
+                    }
+                });
+    }
+
+    /**
+     * 从内存层读取 [position, position + count) 区间，按块切片下发，不复制堆外内存
+     * 下发完成（或取消）后释放 lookup 时持有的引用
+     */
+    public Flux<DataBuffer> readMemory(CachedObject cached, DataBufferFactory bufferFactory, long position, long count) {
+        ByteBuf body = cached.body();
+        long end = position + count;
+        if (count <= 0) {
+            cached.release();
+            return Flux.empty();
+        }
+        return Flux.<DataBuffer, Long>generate(() -> position, (offset, sink) -> {
+                    int length = (int) Math.min(CHUNK_SIZE, end - offset);
+                    ByteBuf slice = body.retainedSlice((int) (long) offset, length);
+                    if (bufferFactory instanceof NettyDataBufferFactory nettyFactory) {
+                        sink.next(nettyFactory.wrap(slice));
+                    } else {
+                        byte[] bytes = new byte[length];
+                        slice.readBytes(bytes);
+                        slice.release();
+                        sink.next(bufferFactory.wrap(bytes));
+                    }
+                    long next = offset + length;
+                    if (next >= end) {
+                        sink.complete();
+                    }
+                    return next;
+                })
+                .doFinally(signal -> cached.release());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("memoryHits", memoryHits.sum());
+        stats.put("diskHits", diskHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("stores", stores.sum());
+        stats.put("memoryEntries", memory.estimatedSize());
+        stats.put("memoryBytes", memory.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L));
+        stats.put("memoryEvictions", memoryEvictions.sum());
+        stats.put("diskEntries", diskIndex.size());
+        stats.put("diskBytes", diskBytes.get());
+        stats.put("diskEvictions", diskEvictions.sum());
+        return stats;
+    }
+
+    /**
+     * 根据上游响应头计算过期时间，不可缓存返回 0
+     */
+    long computeExpiresAt(HttpHeaders headers, long now) {
+        String cacheControl = headers.getCacheControl();
+        if (cacheControl != null) {
+            long maxAge = -1;
+            long sMaxAge = -1;
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                String d = directive.trim();
+                if (d.equals("no-store") || d.equals("private") || d.equals("no-cache")) {
+                    return 0;
+                } else if (d.startsWith("s-maxage=")) {
+                    sMaxAge = parseSeconds(d.substring("s-maxage=".length()));
+                } else if (d.startsWith("max-age=")) {
+                    maxAge = parseSeconds(d.substring("max-age=".length()));
+                }
+            }
+            long seconds = sMaxAge >= 0 ? sMaxAge : maxAge;
+            if (seconds >= 0) {
+                return seconds == 0 ? 0 : now + seconds * 1000;
+            }
+        }
+        long expires = headers.getExpires();
+        if (expires > 0) {
+            long date = headers.getDate();
+            // 用上游 Date 修正时钟偏差
+            long ttl = date > 0 ? expires - date : expires - now;
+            return ttl > 0 ? now + ttl : 0;
+        }
+        return now + defaultTtl.toMillis();
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim().replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void store(CachedObject cached) {
+        stores.increment();
+        // 落盘用一份独立引用，写完释放
+        ByteBuf diskCopy = cached.body().retainedDuplicate();
+        memory.put(cached.key(), cached);
+        Mono.fromRunnable(() -> writeToDisk(cached, diskCopy))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
+
+    private void writeToDisk(CachedObject cached, ByteBuf content) {
+        try {
+            Path bodyFile = bodyPath(cached.key());
+            Files.createDirectories(bodyFile.getParent());
+            Path tmp = bodyFile.resolveSibling(bodyFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer nio = content.nioBuffer();
+                while (nio.hasRemaining()) {
+                    channel.write(nio);
+                }
+            }
+            Files.move(tmp, bodyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(metaPath(bodyFile), cached);
+
+            DiskEntry previous = diskIndex.put(cached.key(), new DiskEntry(cached.withFile(diskFile(bodyFile))));
+            diskBytes.addAndGet(cached.length() - (previous == null ? 0 : previous.object.length()));
+            if (previous != null) {
+                // 每个版本的文件名不同，旧文件等正在读它的请求结束后删除
+                previous.object.release();
+            }
+            evictDiskIfNeeded();
+        } catch (IOException e) {
+            logger.warn("缓存落盘失败: {} - {}", cached.key(), e.getMessage());
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * 磁盘命中的小对象异步加载回内存层，由 W-TinyLFU 决定是否留下
+     * 每个磁盘条目只回填一次，不在每次磁盘命中时重读文件；没留在内存层的继续从磁盘零拷贝发送
+     */
+    private void promote(DiskEntry entry) {
+        CachedObject cached = entry.object;
+        if (cached.length() > maxObjectSize.toBytes() || !entry.promoted.compareAndSet(false, true)
+                || memory.getIfPresent(cached.key()) != null || !cached.tryRetain()) {
+            return;
+        }
+        Mono.fromRunnable(() -> {
+                    ByteBuf content = UnpooledByteBufAllocator.DEFAULT.directBuffer((int) cached.length());
+                    try (FileChannel channel = FileChannel.open(cached.file(), StandardOpenOption.READ)) {
+                        while (content.isWritable()) {
+                            if (content.writeBytes(channel, (long) content.writerIndex(), content.writableBytes()) < 0) {
+                                break;
+                            }
+                        }
+                        if (content.readableBytes() == cached.length()) {
+                            memory.put(cached.key(), cached.withBody(content));
+                            return;
+                        }
+                    } catch (IOException e) {
+                        logger.debug("缓存回填内存失败: {} - {}", cached.key(), e.getMessage());
+                    } finally {
+                        cached.release();
+                    }
+                    content.release();
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
+
+    // 超过磁盘上限时按最近访问时间淘汰到 90%
+    private synchronized void evictDiskIfNeeded() {
+        long limit = diskMaxSize.toBytes();
+        if (diskBytes.get() <= limit) {
+            return;
+        }
+        List<Map.Entry<String, DiskEntry>> entries = new ArrayList<>(diskIndex.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+        long target = limit * 9 / 10;
+        for (Map.Entry<String, DiskEntry> e : entries) {
+            if (diskBytes.get() <= target) {
+                break;
+            }
+            removeDiskEntry(e.getKey(), e.getValue());
+            diskEvictions.increment();
+        }
+    }
+
+    private void removeDiskEntry(String key, DiskEntry entry) {
+        if (diskIndex.remove(key, entry)) {
+            diskBytes.addAndGet(-entry.object.length());
+            // 只释放索引持有的引用，正在发送这个文件的请求结束后才真正删除
+            entry.object.release();
+        }
+    }
+
+    private DiskFile diskFile(Path bodyFile) {
+        return new DiskFile(bodyFile, this::deleteFiles);
+    }
+
+    /**
+     * 删除缓存文件和 .meta；最后一次释放可能发生在 Netty 线程上，删除放到后台
+     */
+    private void deleteFiles(Path bodyFile) {
+        Schedulers.boundedElastic().schedule(() -> {
+            try {
+                Files.deleteIfExists(bodyFile);
+                Files.deleteIfExists(metaPath(bodyFile));
+            } catch (IOException e) {
+                logger.debug("删除缓存文件失败: {} - {}", bodyFile, e.getMessage());
+            }
+        });
+    }
+
+    private void loadDiskIndex() {
+        long now = System.currentTimeMillis();
+        List<Path> metaFiles;
+        // 先列出再处理：边遍历边删除会让 Files.walk 抛 NoSuchFileException
+        try (Stream<Path> files = Files.walk(diskRoot, 2)) {
+            metaFiles = files.filter(path -> path.getFileName().toString().endsWith(".meta")).toList();
+        } catch (IOException e) {
+            logger.warn("加载磁盘缓存索引失败: {}", e.getMessage());
+            return;
+        }
+        for (Path metaFile : metaFiles) {
+            try {
+                CachedObject cached = readMeta(metaFile);
+                if (cached.isExpired(now) || !Files.exists(cached.file())) {
+                    Files.deleteIfExists(metaFile);
+                    Files.deleteIfExists(cached.file());
+                    continue;
+                }
+                DiskEntry entry = new DiskEntry(cached);
+                DiskEntry existing = diskIndex.putIfAbsent(cached.key(), entry);
+                if (existing == null) {
+                    diskBytes.addAndGet(cached.length());
+                } else if (!existing.object.file().equals(cached.file())) {
+                    // 同一个 key 有两个版本的文件（替换时进程退出），保留过期时间晚的那个
+                    if (cached.expiresAt() > existing.object.expiresAt() && diskIndex.replace(cached.key(), existing, entry)) {
+                        diskBytes.addAndGet(cached.length() - existing.object.length());
+                        existing.object.release();
+                    } else {
+                        cached.release();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("跳过损坏的缓存元数据: {} - {}", metaFile, e.getMessage());
+            }
+        }
+        logger.info("磁盘缓存索引加载完成，条目: {}，大小: {} bytes", diskIndex.size(), diskBytes.get());
+    }
+
+    private void writeMeta(Path metaFile, CachedObject cached) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("key", cached.key());
+        props.setProperty("length", Long.toString(cached.length()));
+        props.setProperty("expiresAt", Long.toString(cached.expiresAt()));
+        if (cached.contentType() != null) {
+            props.setProperty("contentType", cached.contentType());
+        }
+        if (cached.etag() != null) {
+            props.setProperty("etag", cached.etag());
+        }
+        if (cached.lastModified() != null) {
+            props.setProperty("lastModified", cached.lastModified());
+        }
+        Path tmp = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private CachedObject readMeta(Path metaFile) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(metaFile)) {
+            props.load(in);
+        }
+        String name = metaFile.getFileName().toString();
+        Path bodyFile = metaFile.resolveSibling(name.substring(0, name.length() - ".meta".length()));
+        return new CachedObject(props.getProperty("key"), props.getProperty("contentType"),
+                props.getProperty("etag"), props.getProperty("lastModified"),
+                Long.parseLong(props.getProperty("length")), Long.parseLong(props.getProperty("expiresAt")),
+                null, diskFile(bodyFile));
+    }
+
+    /**
+     * 每次落盘用新的文件名（key 的 sha256 加随机后缀），替换时旧版本的读者不受影响
+     */
+    private Path bodyPath(String key) {
+        String hash = sha256Hex(key);
+        return diskRoot.resolve(hash.substring(0, 2))
+                .resolve(hash + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    private static Path metaPath(Path bodyFile) {
+        return bodyFile.resolveSibling(bodyFile.getFileName() + ".meta");
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class DiskEntry {
+
+        final CachedObject object;
+
+        volatile long lastAccess = System.currentTimeMillis();
+
+        // 已经尝试过回填内存层
+        final AtomicBoolean promoted = new AtomicBoolean();
+
+        DiskEntry(CachedObject object) {
+            this.object = object;
+        }
+    }
+
+    // 缓存需要保留的上游响应头
+    private static final class CacheHeaders {
+
+        final String contentType;
+
+        final String etag;
+
+        final String lastModified;
+
+        CacheHeaders(HttpHeaders headers) {
+            this.contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+            this.etag = headers.getETag();
+            this.lastModified = headers.getFirst(HttpHeaders.LAST_MODIFIED);
+        }
+    }
+
+    /**
+     * 边透传边复制响应体到堆外内存，超过对象上限立即放弃
+     */
+    private final class Accumulator {
+
+        private ByteBuf content;
+
+        private boolean dropped;
+
+        Accumulator(long declaredLength) {
+            int initial = declaredLength > 0 ? (int) declaredLength : CHUNK_SIZE;
+            this.content = UnpooledByteBufAllocator.DEFAULT.directBuffer(initial, (int) maxObjectSize.toBytes());
+        }
+
+        synchronized void append(DataBuffer buffer) {
+            if (dropped) {
+                return;
+            }
+            if (content.readableBytes() + (long) buffer.readableByteCount() > maxObjectSize.toBytes()) {
+                drop();
+                return;
+            }
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    content.writeBytes(iterator.next());
+                }
+            }
+        }
+
+        synchronized ByteBuf finish(boolean complete) {
+            if (dropped) {
+                return null;
+            }
+            if (!complete) {
+                drop();
+                return null;
+            }
+            ByteBuf result = content;
+            content = null;
+            return result;
+        }
+
+        private void drop() {
+            dropped = true;
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
+    }
+}
@@ -1,73 +1,306 @@
 package org.ewancle.downloadproxy.controller;
 
-import jakarta.annotation.PostConstruct;
+import org.ewancle.downloadproxy.service.ChunkedUploadService;
+import org.ewancle.downloadproxy.service.FileMetadataIndex;
+import org.ewancle.downloadproxy.service.FileMetadataIndex.FileMetadata;
+import org.ewancle.downloadproxy.service.FileRangeService;
+import org.ewancle.downloadproxy.service.MappedFileReader;
+import org.ewancle.downloadproxy.service.RemoteFetchService;
+import org.ewancle.downloadproxy.service.UploadChecksumService;
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.ewancle.downloadproxy.service.ZipStreamService;
+import org.ewancle.downloadproxy.storage.LocalStorageBackend;
+import org.ewancle.downloadproxy.storage.StorageBackend;
+import org.ewancle.downloadproxy.storage.StoredObject;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.PathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DataBufferUtils;
-import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.multipart.FilePart;
-import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RestController
 @RequestMapping("/files")
 public class FileController {
 
-    private final Path rootLocation = Paths.get("uploads").toAbsolutePath().normalize();
+    // 列表接口单页最多条数
+    private static final int MAX_LIST_LIMIT = 10000;
 
-    @PostConstruct
-    public void init() throws IOException {
-        Files.createDirectories(rootLocation);
+    // 服务端抓取：同时抓取的 URL 数和单个文件的大小上限
+    @Value("${files.fetch.concurrency:16}")
+    private int fetchConcurrency;
+
+    @Value("${files.fetch.max-size:512MB}")
+    private DataSize fetchMaxSize;
+
+    private final FileRangeService fileRangeService;
+
+    private final MappedFileReader mappedFileReader;
+
+    private final ChunkedUploadService chunkedUploadService;
+
+    private final UploadChecksumService uploadChecksumService;
+
+    private final StorageBackend storageBackend;
+
+    private final FileMetadataIndex fileMetadataIndex;
+
+    private final ZipStreamService zipStreamService;
+
+    private final RemoteFetchService remoteFetchService;
+
+    public FileController(FileRangeService fileRangeService, MappedFileReader mappedFileReader,
+                          ChunkedUploadService chunkedUploadService, UploadChecksumService uploadChecksumService,
+                          StorageBackend storageBackend, FileMetadataIndex fileMetadataIndex,
+                          ZipStreamService zipStreamService, RemoteFetchService remoteFetchService) {
+        this.fileRangeService = fileRangeService;
+        this.mappedFileReader = mappedFileReader;
+        this.chunkedUploadService = chunkedUploadService;
+        this.uploadChecksumService = uploadChecksumService;
+        this.storageBackend = storageBackend;
+        this.fileMetadataIndex = fileMetadataIndex;
+        this.zipStreamService = zipStreamService;
+        this.remoteFetchService = remoteFetchService;
+    }
+
+    /**
+     * 文件列表：NDJSON 流式返回，每行一个文件；按游标分页，下一页的游标在 X-Next-Cursor 响应头，没有下一页时不返回
+     * 按名称升序由存储后端列出；按修改时间或降序只有本地存储支持（查内存中的排序索引）
+     * curl "http://localhost:8080/files?prefix=abc&sort=mtime&order=desc&limit=100"
+     * curl "http://localhost:8080/files?sort=mtime&order=desc&cursor=MTc5MjI3OTgzNTc0OTphYmM"
+     * @param sort name 或 mtime
+     * @param order asc 或 desc
+     * @param limit 每页条数，最多 10000
+     */
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Mono<ResponseEntity<Flux<Map<String, Object>>>> list(
+            @RequestParam(required = false) String prefix,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "name") String sort,
+            @RequestParam(defaultValue = "asc") String order,
+            @RequestParam(defaultValue = "1000") int limit) {
+
+        if (!sort.equals("name") && !sort.equals("mtime") || !order.equals("asc") && !order.equals("desc")) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        boolean byModified = sort.equals("mtime");
+        boolean descending = order.equals("desc");
+        int pageSize = Math.max(1, Math.min(limit, MAX_LIST_LIMIT));
+        if ((byModified || descending) && !(storageBackend instanceof LocalStorageBackend)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        if (byModified || descending) {
+            List<FileMetadata> page;
+            try {
+                page = fileMetadataIndex.list(prefix, cursor, byModified, descending, pageSize);
+            } catch (IllegalArgumentException e) {
+                return Mono.just(ResponseEntity.badRequest().build());
+            }
+            ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+            if (page.size() == pageSize) {
+                builder.header("X-Next-Cursor", FileMetadataIndex.cursorOf(page.get(page.size() - 1), byModified));
+            }
+            return Mono.just(builder.body(Flux.fromIterable(page).map(metadata -> listEntry(metadata.name(),
+                    metadata.size(), metadata.lastModified(), metadata.mediaType(), metadata.etag()))));
+        }
+
+        String startAfter;
+        try {
+            startAfter = cursor == null ? null : FileMetadataIndex.nameOf(cursor);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        // 对象存储的列表是远程调用，这一页取完才知道下一页的游标
+        return storageBackend.list(prefix, startAfter, pageSize)
+                .collectList()
+                .map(page -> {
+                    ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+                    if (page.size() == pageSize) {
+                        builder.header("X-Next-Cursor", FileMetadataIndex.cursorOf(page.get(page.size() - 1).name()));
+                    }
+                    return builder.body(Flux.fromIterable(page).map(object -> listEntry(object.name(), object.size(),
+                            object.lastModified(), object.mediaType(), object.etag())));
+                });
+    }
+
+    private static Map<String, Object> listEntry(String name, long size, long lastModified, MediaType mediaType,
+                                                 String etag) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("name", name);
+        entry.put("size", size);
+        entry.put("lastModified", lastModified);
+        entry.put("mimeType", mediaType.toString());
+        entry.put("etag", etag);
+        return entry;
     }
 
     // 测试：curl -F "file=@sample.pdf" http://localhost:8080/files/upload
     @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public Mono<ResponseEntity<String>> upload(@RequestPart("file") FilePart filePart) {
+    public Mono<ResponseEntity<String>> upload(@RequestPart("file") FilePart filePart, @RequestHeader HttpHeaders headers) {
         String filename = StringUtils.cleanPath(Objects.requireNonNull(filePart.filename()));
         if (filename.contains("..")) {
             return Mono.just(ResponseEntity.badRequest().body("Invalid file path."));
         }
 
-        Path destination = rootLocation.resolve(UUID.randomUUID() + "-" + filename);
-        return filePart
-                .transferTo(destination)
-                .thenReturn(ResponseEntity.ok(destination.getFileName().toString()));
+        String storedName = UUID.randomUUID() + "-" + filename;
+        return writeVerified(filePart.content(), storedName, filePart.headers(), headers)
+                .thenReturn(ResponseEntity.ok(storedName))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
     // 测试： http://localhost:8080/files/download/{filename}
     @GetMapping("/download/{filename}")
-    public Mono<ResponseEntity<Flux<DataBuffer>>> download(@PathVariable String filename) {
-        Path file = rootLocation.resolve(filename).normalize();
+    public Mono<Void> download(@PathVariable String filename, ServerHttpRequest request, ServerHttpResponse response) {
+        return storageBackend.stat(filename)
+                .flatMap(object -> {
+                    response.setStatusCode(HttpStatus.OK);
+                    setDownloadHeaders(response, object);
+                    response.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                    response.getHeaders().setContentLength(object.size());
+                    // 本地文件：明文 HTTP 零拷贝（sendfile），TLS 退回池化缓冲区读取
+                    if (object.localPath() != null) {
+                        return fileRangeService.writeFile(request, response, object.localPath(), 0, object.size());
+                    }
+                    return response.writeWith(storageBackend.get(filename, 0, object.size(), response.bufferFactory()));
+                })
+                .switchIfEmpty(Mono.defer(() -> notFound(response)));
+    }
 
-        if (!file.startsWith(rootLocation) || !Files.exists(file)) {
-            return Mono.just(ResponseEntity.notFound().build());
-        }
+    /**
+     * 多个文件打包成一个 ZIP 流式下载，不生成临时文件
+     * curl -o files.zip "http://localhost:8080/files/download/zip?name=a.jpg&name=b.txt"
+     * 文件很多时用 POST 传 JSON 数组：
+     * curl -o files.zip -H "Content-Type: application/json" -d '["a.jpg","b.txt"]' http://localhost:8080/files/download/zip
+     */
+    @GetMapping("/download/zip")
+    public Mono<Void> downloadZip(@RequestParam("name") List<String> names,
+                                  @RequestParam(defaultValue = "files.zip") String filename,
+                                  ServerHttpResponse response) {
+        return writeZip(names, filename, response);
+    }
 
-        Flux<DataBuffer> body = DataBufferUtils.read(file, new DefaultDataBufferFactory(), 4096);
-        MediaType mediaType = MediaType.APPLICATION_OCTET_STREAM;
+    @PostMapping(value = "/download/zip", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<Void> downloadZip(@RequestBody Mono<List<String>> names,
+                                  @RequestParam(defaultValue = "files.zip") String filename,
+                                  ServerHttpResponse response) {
+        return names.flatMap(list -> writeZip(list, filename, response));
+    }
+
+    private Mono<Void> writeZip(List<String> names, String filename, ServerHttpResponse response) {
+        // 先确认所有文件都存在，开始写响应后就没法再返回错误状态了
+        return Flux.fromIterable(new LinkedHashSet<>(names))
+                .flatMapSequential(name -> storageBackend.stat(name)
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.empty())
+                        .map(object -> Map.entry(name, object)))
+                .collectList()
+                .flatMap(results -> {
+                    List<StoredObject> files = new ArrayList<>();
+                    List<String> missing = new ArrayList<>();
+                    for (Map.Entry<String, Optional<StoredObject>> result : results) {
+                        result.getValue().ifPresentOrElse(files::add, () -> missing.add(result.getKey()));
+                    }
+                    if (files.isEmpty() || !missing.isEmpty()) {
+                        response.setStatusCode(HttpStatus.NOT_FOUND);
+                        byte[] body = ("文件不存在: " + missing).getBytes(StandardCharsets.UTF_8);
+                        response.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+                        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(body)));
+                    }
 
-        return Mono.just(ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFileName() + "\"")
-                .contentType(mediaType)
-                .body(body));
+                    response.setStatusCode(HttpStatus.OK);
+                    response.getHeaders().setContentType(MediaType.parseMediaType("application/zip"));
+                    response.getHeaders().setContentDisposition(ContentDisposition.attachment()
+                            .filename(filename, StandardCharsets.UTF_8).build());
+                    return response.writeWith(zipStreamService.zip(files, response.bufferFactory()));
+                });
+    }
+
+    /**
+     * 服务端抓取远程文件直接存储，数据不经过客户端；每个 URL 走 RemoteFetchService（只允许公网 http/https 地址，
+     * 重定向逐跳校验，失败重试、退避），边下载边写盘，限制同时抓取的数量；返回每个 URL 的结果（顺序和请求一致）
+     * curl -H "Content-Type: application/json" \
+     *      -d '["https://example.com/a.jpg","https://example.com/b.png"]' \
+     *      http://localhost:8080/files/fetch
+     * 返回：[{"url":"...","status":200,"name":"uuid-a.jpg","size":1234,"etag":"..."},{"url":"...","status":404,"error":"..."}]
+     */
+    @PostMapping(value = "/fetch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<List<Map<String, Object>>> fetchToStorage(@RequestBody Mono<List<String>> urls) {
+        return urls.flatMapMany(list -> Flux.fromIterable(list)
+                        .flatMapSequential(this::fetchOne, fetchConcurrency))
+                .collectList();
+    }
+
+    private Mono<Map<String, Object>> fetchOne(String url) {
+        String storedName = UUID.randomUUID() + "-" + nameFromUrl(url);
+        // 存原始字节，不要上游压缩过的内容
+        HttpHeaders forward = new HttpHeaders();
+        forward.set(HttpHeaders.ACCEPT_ENCODING, "identity");
+
+        return remoteFetchService.get(url, forward)
+                .flatMap(entity -> {
+                    Flux<DataBuffer> body = Objects.requireNonNull(entity.getBody());
+                    AtomicLong received = new AtomicLong();
+                    Flux<DataBuffer> limited = body.doOnNext(buffer -> {
+                        if (received.addAndGet(buffer.readableByteCount()) > fetchMaxSize.toBytes()) {
+                            DataBufferUtils.release(buffer);
+                            throw new IllegalArgumentException("超过大小限制 " + fetchMaxSize);
+                        }
+                    });
+                    return writeVerified(limited, storedName)
+                            .map(stored -> {
+                                Map<String, Object> result = new LinkedHashMap<>();
+                                result.put("url", url);
+                                result.put("status", entity.getStatusCode().value());
+                                result.put("name", storedName);
+                                result.put("size", stored.size());
+                                result.put("etag", stored.etag());
+                                return result;
+                            });
+                })
+                .onErrorResume(e -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("url", url);
+                    // 上游返回错误状态时带上状态码，其它错误（地址非法或不允许、连接失败、超过大小）为 0
+                    result.put("status", e instanceof WebClientResponseException ex ? ex.getStatusCode().value() : 0);
+                    result.put("error", e.getMessage());
+                    return Mono.just(result);
+                });
+    }
+
+    /**
+     * 存储文件名取 URL 路径的最后一段
+     */
+    private static String nameFromUrl(String url) {
+        try {
+            String path = URI.create(url.trim()).getPath();
+            String name = path == null ? "" : StringUtils.cleanPath(path.substring(path.lastIndexOf('/') + 1));
+            if (!name.isEmpty() && !name.contains("..") && !name.startsWith(".")) {
+                return name;
+            }
+        } catch (IllegalArgumentException ignored) {
+            // 地址非法，抓取时会返回错误
+        }
+        return "download";
     }
 
     /**
@@ -76,6 +309,7 @@ public class FileController {
      *   -F "file=@file1.txt" \
      *   -F "file=@file2.jpg" \
      *   -F "file=@file3.pdf"
+     * 每个文件的校验值放在各自分片头里（X-Checksum-SHA256 / X-Checksum-CRC32C）
      * @param files
      * @return
      */
@@ -89,12 +323,12 @@ public class FileController {
 
                     // 给文件名添加唯一标识，避免重复
                     String storedFilename = UUID.randomUUID() + "-" + originalFilename;
-                    Path destination = rootLocation.resolve(storedFilename);
 
-                    return filePart.transferTo(destination).thenReturn(storedFilename);
+                    return writeVerified(filePart.content(), storedFilename, filePart.headers()).thenReturn(storedFilename);
                 })
                 .collectList()
-                .map(filenames -> ResponseEntity.ok(filenames));
+                .map(filenames -> ResponseEntity.ok(filenames))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(List.of(e.getMessage()))));
     }
 
     /*@PostMapping("/upload/batch2")
@@ -115,43 +349,51 @@ public class FileController {
      * 上传：支持大文件上传 + 非阻塞写入
      */
     @PostMapping(value = "/upload/stream", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public Mono<ResponseEntity<String>> uploadStream(@RequestPart("file") FilePart filePart) {
+    public Mono<ResponseEntity<String>> uploadStream(@RequestPart("file") FilePart filePart, @RequestHeader HttpHeaders headers) {
         String originalFilename = StringUtils.cleanPath(Objects.requireNonNull(filePart.filename()));
         if (originalFilename.contains("..")) {
             return Mono.just(ResponseEntity.badRequest().body("非法文件路径"));
         }
 
         String storedName = UUID.randomUUID() + "-" + originalFilename;
-        Path destination = rootLocation.resolve(storedName);
 
-        return DataBufferUtils.write(filePart.content(), destination, StandardOpenOption.CREATE_NEW)
-                .then(Mono.just(ResponseEntity.ok(storedName)));
+        return writeVerified(filePart.content(), storedName, filePart.headers(), headers)
+                .then(Mono.just(ResponseEntity.ok(storedName)))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
     /**
      * 下载：使用 DataBuffer 流式响应，支持大文件、高并发
      */
     @GetMapping("/download/stream/{filename}")
-    public Mono<ResponseEntity<Flux<DataBuffer>>> downloadStream(@PathVariable String filename) {
-        Path file = rootLocation.resolve(filename).normalize();
-
-        if (!file.startsWith(rootLocation) || !Files.exists(file)) {
-            return Mono.just(ResponseEntity.notFound().build());
-        }
-
-        //Flux<DataBuffer> body = DataBufferUtils.read(file, new DefaultDataBufferFactory(), 8192);
-        // 优化
-        Flux<DataBuffer> body = readMapped(file, 8192);
-
-        return Mono.just(ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFileName() + "\"")
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(body));
+    public Mono<Void> downloadStream(@PathVariable String filename, ServerHttpRequest request, ServerHttpResponse response) {
+        return storageBackend.stat(filename)
+                .flatMap(object -> {
+                    Path file = object.localPath();
+                    long fileSize = object.size();
+
+                    response.setStatusCode(HttpStatus.OK);
+                    setDownloadHeaders(response, object);
+                    response.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                    response.getHeaders().setContentLength(fileSize);
+
+                    if (file == null) {
+                        return response.writeWith(storageBackend.get(filename, 0, fileSize, response.bufferFactory()));
+                    }
+                    //Flux<DataBuffer> body = DataBufferUtils.read(file, new DefaultDataBufferFactory(), 8192);
+                    // 明文 HTTP 零拷贝；TLS 下用内存映射分块读取（不经过堆）
+                    if (fileRangeService.isZeroCopy(request, response)) {
+                        return fileRangeService.writeFile(request, response, file, 0, fileSize);
+                    }
+                    return response.writeWith(readMapped(file, 256 * 1024, response.bufferFactory()));
+                })
+                .switchIfEmpty(Mono.defer(() -> notFound(response)));
     }
 
     // 单文件上传（全响应式）
     @PostMapping(value = "/upload/reactive", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public Mono<ResponseEntity<String>> uploadReactive(@RequestPart("file") Mono<FilePart> filePartMono) {
+    public Mono<ResponseEntity<String>> uploadReactive(@RequestPart("file") Mono<FilePart> filePartMono,
+                                                       @RequestHeader HttpHeaders headers) {
         return filePartMono.flatMap(filePart -> {
             String originalFilename = StringUtils.cleanPath(Objects.requireNonNull(filePart.filename()));
             if (originalFilename.contains("..")) {
@@ -159,21 +401,20 @@ public class FileController {
             }
 
             String storedFilename = UUID.randomUUID() + "-" + originalFilename;
-            Path destination = rootLocation.resolve(storedFilename);
 
-            // 响应式写入文件内容
-            return DataBufferUtils.write(filePart.content(), destination, StandardOpenOption.CREATE_NEW)
+            // 响应式写入文件内容，同时校验
+            return writeVerified(filePart.content(), storedFilename, filePart.headers(), headers)
                     .thenReturn(ResponseEntity.ok(storedFilename));
-        });
+        }).onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
     // curl -F "file=@your-image.jpg" http://localhost:8080/files/upload/reactive
     @PostMapping(value = "/upload/reactive-validate", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public Mono<ResponseEntity<String>> uploadWithValidation(@RequestPart("file") Mono<FilePart> filePartMono) {
+    public Mono<ResponseEntity<String>> uploadWithValidation(@RequestPart("file") Mono<FilePart> filePartMono,
+                                                             @RequestHeader HttpHeaders headers) {
         return filePartMono.flatMap(filePart -> {
             String original = filePart.filename();
             String safeName = UUID.randomUUID() + "-" + StringUtils.cleanPath(original);
-            Path destination = rootLocation.resolve(safeName);
 
             // MIME类型校验（限制只能上传图片）
             MediaType mediaType = filePart.headers().getContentType();
@@ -182,8 +423,10 @@ public class FileController {
                         .body("只支持图片类型上传"));
             }
 
-            return DataBufferUtils.write(filePart.content(), destination, StandardOpenOption.CREATE_NEW)
+            return writeVerified(filePart.content(), safeName, filePart.headers(), headers)
                     .thenReturn(ResponseEntity.ok(safeName));
+        }).onErrorResume(IllegalArgumentException.class, e -> {
+            return Mono.just(ResponseEntity.badRequest().body(e.getMessage()));
         }).onErrorResume(e -> {
             return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("上传失败: " + e.getMessage()));
@@ -217,18 +460,37 @@ for (const chunk of chunks) {
 await fetch("/upload/merge", { method: "POST", body: { fileId, filename, total } });
 
  */
+    /**
+     * 查询已上传的分片：/upload/status?fileId=  返回已收到的分片序号，例如 [0,1,3]
+     * 只读会话位图，不列目录；没有这个上传时返回 []
+     * curl "http://localhost:8080/files/upload/status?fileId=123abc456"
+     * @param fileId
+     * @return
+     */
+    @GetMapping("/upload/status")
+    public Mono<ResponseEntity<List<Integer>>> uploadStatus(@RequestParam String fileId) {
+        return chunkedUploadService.status(fileId)
+                .map(ResponseEntity::ok)
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
     /**
      * 接收单个分片：/upload/chunk  前端将大文件用 JS 分片（如每片 1MB） axios 分片上传
+     * 分片直接写到目标文件的 index × chunkSize 位置，可以并行、乱序上传
      * curl -F "file=@chunk0" \
      *      -F "fileId=123abc456" \
      *      -F "index=0" \
      *      -F "total=3" \
+     *      -F "chunkSize=1048576" \
      *      -F "filename=bigfile.zip" \
+     *      -H "X-Checksum-CRC32C: 1a2b3c4d" \
      *      http://localhost:8080/files/upload/chunk
+     * 可选的 X-Checksum-SHA256 / X-Checksum-CRC32C 校验这一片，不一致时返回 400，分片不记为已收到
      * @param filePartMono
      * @param fileId
      * @param index
      * @param total
+     * @param chunkSize 分片大小，除最后一片外每片必须正好这么大，默认 1MB
      * @param filename
      * @return
      */
@@ -238,30 +500,29 @@ await fetch("/upload/merge", { method: "POST", body: { fileId, filename, total }
             @RequestParam String fileId,
             @RequestParam int index,
             @RequestParam int total,
-            @RequestParam(required = false) String filename) {
-
-        Path chunkDir = rootLocation.resolve(fileId);
-        Path chunkFile = chunkDir.resolve("chunk-" + index);
-
-        return Mono.fromCallable(() -> {
-            Files.createDirectories(chunkDir);
-            return chunkFile;
-        }).flatMap(path ->
-                filePartMono.flatMap(filePart ->
-                        DataBufferUtils.write(filePart.content(), path, StandardOpenOption.CREATE)
-                                .thenReturn(ResponseEntity.ok("Chunk " + index + " uploaded"))
-                )
-        );
+            @RequestParam(defaultValue = "" + ChunkedUploadService.DEFAULT_CHUNK_SIZE) long chunkSize,
+            @RequestParam(required = false) String filename,
+            @RequestHeader HttpHeaders headers) {
+
+        return filePartMono.flatMap(filePart ->
+                        chunkedUploadService.writeChunk(fileId, index, total, chunkSize, filePart.content(),
+                                        filePart.headers(), headers)
+                                .thenReturn(ResponseEntity.ok("Chunk " + index + " uploaded")))
+                .onErrorResume(IllegalArgumentException.class,
+                        e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
 
     /**
      * 合并分片：/upload/merge
+     * 分片已经写在各自的位置上，这里只截断到实际大小并原子重命名
      * curl -X POST \
      *      -F "fileId=123abc456" \
      *      -F "filename=bigfile.zip" \
      *      -F "total=3" \
+     *      -H "X-Checksum-CRC32C: 1a2b3c4d" \
      *      http://localhost:8080/files/upload/merge
+     * 可选的 X-Checksum-CRC32C 校验整个文件（由各分片的 CRC32C 组合得到，不重新读文件）
      * @param fileId
      * @param filename
      * @param total
@@ -271,23 +532,20 @@ await fetch("/upload/merge", { method: "POST", body: { fileId, filename, total }
     public Mono<ResponseEntity<String>> mergeChunks(
             @RequestParam String fileId,
             @RequestParam String filename,
-            @RequestParam int total) {
+            @RequestParam int total,
+            @RequestHeader HttpHeaders headers) {
 
-        Path chunkDir = rootLocation.resolve(fileId);
-        Path mergedFile = rootLocation.resolve(UUID.randomUUID() + "-" + filename);
+        String cleanFilename = StringUtils.cleanPath(filename);
+        if (cleanFilename.contains("..") || cleanFilename.contains("/")) {
+            return Mono.just(ResponseEntity.badRequest().body("非法文件路径"));
+        }
 
-        return Mono.fromCallable(() -> {
-            try (OutputStream out = Files.newOutputStream(mergedFile, StandardOpenOption.CREATE)) {
-                for (int i = 0; i < total; i++) {
-                    Path chunk = chunkDir.resolve("chunk-" + i);
-                    if (!Files.exists(chunk)) {
-                        throw new RuntimeException("缺少分片: chunk-" + i);
-                    }
-                    Files.copy(chunk, out);
-                }
-            }
-            return ResponseEntity.ok("合并完成: " + mergedFile.getFileName());
-        });
+        return chunkedUploadService.complete(fileId, cleanFilename, total, headers)
+                // 合并结果交给存储后端（本地存储原地登记，其它后端上传后删除本地文件）
+                .flatMap(merged -> storageBackend.putFile(merged.getFileName().toString(), merged, uploadChecksumService.begin()))
+                .map(stored -> ResponseEntity.ok("合并完成: " + stored.name()))
+                .onErrorResume(e -> e instanceof IllegalStateException || e instanceof IllegalArgumentException,
+                        e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
     // 使用浏览器或 curl 等工具模拟分片下载：
@@ -298,154 +556,106 @@ await fetch("/upload/merge", { method: "POST", body: { fileId, filename, total }
     //# 下载第 2MB ~ 3MB
     //curl -H "Range: bytes=1048576-2097151" -O http://localhost:8080/files/download/range/largefile.zip
     @GetMapping("/download/range/{filename}")
-    public Mono<ResponseEntity<Flux<DataBuffer>>> downloadWithRange(
+    public Mono<Void> downloadWithRange(
             @PathVariable String filename,
-            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader) {
-
-        Path filePath = rootLocation.resolve(filename).normalize();
-        if (!Files.exists(filePath) || !filePath.startsWith(rootLocation)) {
-            return Mono.just(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
-        }
-
-        long fileSize;
-        try {
-            fileSize = Files.size(filePath);
-        } catch (IOException e) {
-            return Mono.error(e);
-        }
-
-        // 没有 Range，走全量下载
-        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
-            Flux<DataBuffer> body = DataBufferUtils.read(filePath, new DefaultDataBufferFactory(), 8192);
-            return Mono.just(ResponseEntity.ok()
-                    .contentLength(fileSize)
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(body));
-        }
-
-        // 默认整个文件
-        long start = 0;
-        long end = fileSize - 1;
-
-        // 如果有 Range 请求头
-        if (StringUtils.hasText(rangeHeader) && rangeHeader.startsWith("bytes=")) {
-            String[] ranges = rangeHeader.replace("bytes=", "").split("-");
-            try {
-                start = Long.parseLong(ranges[0]);
-                if (ranges.length > 1 && StringUtils.hasText(ranges[1])) {
-                    end = Long.parseLong(ranges[1]);
-                }
-            } catch (NumberFormatException e) {
-                return Mono.just(ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).build());
-            }
-        }
-
-        if (start > end || end >= fileSize) {
-            return Mono.just(ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).build());
-        }
-
-        long finalStart = start;
-        long contentLength = end - start + 1;
-
-        DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
-        int bufferSize = 8192;
-
-        Flux<DataBuffer> flux = DataBufferUtils
-                .read(filePath, bufferFactory, bufferSize, StandardOpenOption.READ)
-                .skip(finalStart / bufferSize)
-                .take((contentLength + bufferSize - 1) / bufferSize) // 向上取整
-                .map(buffer -> {
-                    // 仅对首块和末块裁剪，确保只返回所需范围
-                    int readStart = (int) (finalStart % bufferSize);
-                    int readEnd = (int) (readStart + contentLength);
-                    int readableBytes = buffer.readableByteCount();
-
-                    if (readStart > 0 || readEnd < readableBytes) {
-                        return buffer.slice(readStart, Math.min(readEnd, readableBytes) - readStart);
+            ServerHttpRequest request,
+            ServerHttpResponse response) {
+
+        return storageBackend.stat(filename)
+                .flatMap(object -> {
+                    // 按请求位置直接读取，多段 Range 返回 multipart/byteranges，后缀区间 bytes=-N 也支持
+                    setDownloadHeaders(response, object);
+                    if (object.localPath() != null) {
+                        return fileRangeService.write(request, response, object.localPath(), object.size(),
+                                MediaType.APPLICATION_OCTET_STREAM);
                     }
-                    return buffer;
-                });
-
-        HttpStatus status = HttpStatus.PARTIAL_CONTENT;
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentLength(contentLength);
-        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
-        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        headers.set(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, fileSize));
-
-        return Mono.just(new ResponseEntity<>(flux, headers, status));
+                    return fileRangeService.write(request, response,
+                            (position, count, bufferFactory) -> storageBackend.get(filename, position, count, bufferFactory),
+                            object.size(), MediaType.APPLICATION_OCTET_STREAM);
+                })
+                .switchIfEmpty(Mono.defer(() -> notFound(response)));
+    }
 
+    /**
+     * 删除文件：内容存储里的文件只删除引用，最后一个引用删除时才删除内容
+     * curl -X DELETE http://localhost:8080/files/{filename}
+     */
+    @DeleteMapping("/{filename}")
+    public Mono<ResponseEntity<Void>> delete(@PathVariable String filename) {
+        return storageBackend.delete(filename)
+                .map(deleted -> deleted ? ResponseEntity.noContent().<Void>build() : ResponseEntity.notFound().<Void>build());
     }
 
-    private static final Path BASE_DIR = Paths.get("/data/files");
+    // 查存储后端的对象信息（本地存储查元数据索引，不访问文件系统）
     @GetMapping("/meta/{filename}")
-    public Mono<Map<String, Object>> getFileMetadata(
+    public Mono<ResponseEntity<Map<String, Object>>> getFileMetadata(
             @PathVariable String filename,
             ServerHttpRequest request) {
 
-        return Mono.fromSupplier(() -> {
-            try {
-                Path filePath = BASE_DIR.resolve(filename).normalize();
-                if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-                    throw new NoSuchFileException("File not found: " + filename);
-                }
-
-                Map<String, Object> meta = new HashMap<>();
-                meta.put("filename", filename);
-                meta.put("size", Files.size(filePath));
-                meta.put("lastModified", Files.getLastModifiedTime(filePath).toMillis());
-                meta.put("mimeType", Files.probeContentType(filePath)); // e.g. application/pdf
-
-                return meta;
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to read file metadata", e);
-            }
-        });
+        return storageBackend.stat(filename)
+                .map(object -> {
+                    Map<String, Object> meta = new HashMap<>();
+                    meta.put("filename", filename);
+                    meta.put("size", object.size());
+                    meta.put("lastModified", object.lastModified());
+                    meta.put("mimeType", object.mediaType().toString()); // e.g. application/pdf
+                    meta.put("etag", object.etag());
+                    return ResponseEntity.ok(meta);
+                })
+                .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
-    // GET /files/meta/mydata.zip
+    // GET /files/meta?path=mydata.zip
+    // 只查存储里的对象，不再读取服务器上任意路径的文件属性
     @GetMapping("/meta")
-    public Mono<Map<String, Object>> getFileMeta(@RequestParam String path) {
-        return Mono.fromCallable(() -> {
-                    Path filePath = Paths.get(path);
-                    if (!Files.exists(filePath)) {
-                        throw new NoSuchFileException("File not found: " + path);
-                    }
-
+    public Mono<ResponseEntity<Map<String, Object>>> getFileMeta(@RequestParam String path) {
+        String name = StringUtils.cleanPath(path);
+        return storageBackend.stat(name)
+                .map(object -> {
                     Map<String, Object> meta = new HashMap<>();
-                    BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
-
-                    meta.put("name", filePath.getFileName().toString());
-                    meta.put("size", attrs.size());
-                    meta.put("lastModified", attrs.lastModifiedTime().toMillis());
-                    meta.put("isDirectory", attrs.isDirectory());
-                    meta.put("contentType", Files.probeContentType(filePath));
-
-                    return meta;
+                    meta.put("name", object.name());
+                    meta.put("size", object.size());
+                    meta.put("lastModified", object.lastModified());
+                    meta.put("isDirectory", false);
+                    meta.put("contentType", object.mediaType().toString());
+                    meta.put("etag", object.etag());
+                    return ResponseEntity.ok(meta);
                 })
-                .subscribeOn(Schedulers.boundedElastic()); // 防止阻塞 Netty 线程
-                //.cast(Map.class); // 强制转为 Map<String, Object>
+                .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
 
 
-    public Flux<DataBuffer> readMapped(Path file, int chunkSize) {
-        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
-            long size = channel.size();
-            List<DataBuffer> buffers = new ArrayList<>();
+    /**
+     * 写入存储后端的同时计算 SHA-256 / CRC32C；内容读完后和客户端校验头比较，
+     * 不一致时以 ChecksumMismatchException 结束内容流，后端丢弃已写入的部分，不会提交
+     */
+    private Mono<StoredObject> writeVerified(Flux<DataBuffer> content, String storedName, HttpHeaders... digestSources) {
+        Checksum checksum = uploadChecksumService.begin();
+        // 后端在内容流经时累加校验值，读到结尾时所有数据都已经计算过
+        Flux<DataBuffer> verified = content.concatWith(Mono.<DataBuffer>fromRunnable(() -> uploadChecksumService.verify(checksum, digestSources)));
+        return storageBackend.put(storedName, verified, checksum);
+    }
 
-            for (long pos = 0; pos < size; pos += chunkSize) {
-                long len = Math.min(chunkSize, size - pos);
-                MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
-                byte[] data = new byte[(int) len];
-                mbb.get(data);
-                buffers.add(new DefaultDataBufferFactory().wrap(data));
-            }
+    /**
+     * 下载的附件名、ETag 和修改时间，都来自存储后端的对象信息
+     */
+    private void setDownloadHeaders(ServerHttpResponse response, StoredObject object) {
+        HttpHeaders headers = response.getHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + object.name() + "\"");
+        headers.setETag(object.etag());
+        headers.setLastModified(object.lastModified());
+    }
 
-            return Flux.fromIterable(buffers);
-        } catch (IOException e) {
-            return Flux.error(e);
-        }
+    private static Mono<Void> notFound(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.NOT_FOUND);
+        return response.setComplete();
     }
-}
\ No newline at end of file
+
+    /**
+     * 内存映射读取：按需映射、不复制、跟随下游请求量，写出后解除映射
+     */
+    public Flux<DataBuffer> readMapped(Path file, int chunkSize, DataBufferFactory bufferFactory) {
+        return mappedFileReader.read(file, chunkSize, bufferFactory);
+    }
+}
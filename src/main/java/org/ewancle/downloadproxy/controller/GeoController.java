@@ -0,0 +1,135 @@
+package org.ewancle.downloadproxy.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.ewancle.downloadproxy.service.GeoIpService;
+import org.ewancle.downloadproxy.service.GeoRegion;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * IP 归属地接口（路径以 /geo 开头，GlobalWebFilter 不会转发到上游），使用 GeoIpService 已经映射的库
+ */
+@RestController
+@RequestMapping("/geo")
+public class GeoController {
+
+    // 按行切分请求体，单行长度上限沿用解码器默认值
+    private static final StringDecoder LINE_DECODER = StringDecoder.textPlainOnly(List.of("\n"), true);
+
+    private final GeoIpService geoIpService;
+
+    private final ObjectMapper objectMapper;
+
+    // 每批的 IP 个数：一批在一个线程上查完，结果合成一个缓冲区写出
+    @Value("${geo.batch.chunk-size:1000}")
+    private int chunkSize;
+
+    // 同时查询的批数，0 表示 CPU 核数
+    @Value("${geo.batch.parallelism:0}")
+    private int parallelism;
+
+    public GeoController(GeoIpService geoIpService, ObjectMapper objectMapper) {
+        this.geoIpService = geoIpService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * 批量查询：请求体每行一个 IP（纯文本、JSON 字符串 "1.2.3.4" 或 {"ip":"1.2.3.4"} 都可以），
+     * 边读边查，多批并行查询，结果按输入顺序以 NDJSON 流式返回，不缓存整个请求体
+     * curl -H "Content-Type: application/x-ndjson" --data-binary @ips.txt http://localhost:8080/geo/batch
+     * 返回：{"ip":"1.2.3.4","country":"中国","province":"福建","city":"福州","isp":"电信"}，查不到只有 ip，非法的带 error
+     */
+    @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<Flux<DataBuffer>> batch(@RequestBody Flux<DataBuffer> body, ServerHttpResponse response) {
+        if (!geoIpService.isAvailable()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        DataBufferFactory bufferFactory = response.bufferFactory();
+        int workers = parallelism > 0 ? parallelism : Schedulers.DEFAULT_POOL_SIZE;
+        Flux<DataBuffer> results = LINE_DECODER.decode(body, ResolvableType.forClass(String.class), null, null)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .buffer(chunkSize)
+                // 批内串行、批间并行，flatMapSequential 保证输出顺序和输入一致，并限制在途的批数
+                .flatMapSequential(lines -> Mono.fromCallable(() -> resolve(lines, bufferFactory))
+                        .subscribeOn(Schedulers.parallel()), workers)
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(results);
+    }
+
+    private DataBuffer resolve(List<String> lines, DataBufferFactory bufferFactory) throws JsonProcessingException {
+        DataBuffer buffer = bufferFactory.allocateBuffer(lines.size() * 96);
+        try {
+            for (String line : lines) {
+                buffer.write(objectMapper.writeValueAsBytes(resolveLine(line)));
+                buffer.write((byte) '\n');
+            }
+            return buffer;
+        } catch (JsonProcessingException | RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+    }
+
+    private Map<String, Object> resolveLine(String line) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        String ip;
+        try {
+            ip = ipOf(line);
+        } catch (JsonProcessingException e) {
+            result.put("input", line);
+            result.put("error", "无法解析: " + e.getOriginalMessage());
+            return result;
+        }
+        result.put("ip", ip);
+        byte[] address = GeoIpService.parseIp(ip);
+        if (address == null) {
+            result.put("error", "非法 IP");
+            return result;
+        }
+        GeoRegion region = geoIpService.lookup(address);
+        if (region != null) {
+            putIfPresent(result, "country", region.country());
+            putIfPresent(result, "province", region.province());
+            putIfPresent(result, "city", region.city());
+            putIfPresent(result, "isp", region.isp());
+        }
+        return result;
+    }
+
+    private String ipOf(String line) throws JsonProcessingException {
+        if (line.startsWith("{")) {
+            return objectMapper.readTree(line).path("ip").textValue();
+        }
+        if (line.startsWith("\"")) {
+            return objectMapper.readValue(line, String.class);
+        }
+        return line;
+    }
+
+    private static void putIfPresent(Map<String, Object> result, String key, String value) {
+        if (value != null) {
+            result.put(key, value);
+        }
+    }
+}
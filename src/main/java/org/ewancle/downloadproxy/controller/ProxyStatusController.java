@@ -0,0 +1,61 @@
+package org.ewancle.downloadproxy.controller;
+
+import org.ewancle.downloadproxy.cache.NegativeResultCache;
+import org.ewancle.downloadproxy.cache.ProxyResponseCache;
+import org.ewancle.downloadproxy.service.RequestCoalescer;
+import org.ewancle.downloadproxy.service.UpstreamHostSelector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 代理运行状态（路径以 /_proxy 开头，GlobalWebFilter 不会转发到上游）
+ */
+@RestController
+@RequestMapping("/_proxy")
+public class ProxyStatusController {
+
+    private final UpstreamHostSelector upstreamHostSelector;
+
+    private final ProxyResponseCache responseCache;
+
+    private final RequestCoalescer requestCoalescer;
+
+    private final NegativeResultCache negativeResultCache;
+
+    public ProxyStatusController(UpstreamHostSelector upstreamHostSelector, ProxyResponseCache responseCache,
+                                 RequestCoalescer requestCoalescer, NegativeResultCache negativeResultCache) {
+        this.upstreamHostSelector = upstreamHostSelector;
+        this.responseCache = responseCache;
+        this.requestCoalescer = requestCoalescer;
+        this.negativeResultCache = negativeResultCache;
+    }
+
+    // 测试：curl http://localhost:8080/_proxy/upstreams
+    @GetMapping("/upstreams")
+    public Mono<List<Map<String, Object>>> upstreams() {
+        return Mono.just(upstreamHostSelector.snapshot());
+    }
+
+    // 测试：curl http://localhost:8080/_proxy/cache
+    @GetMapping("/cache")
+    public Mono<Map<String, Object>> cache() {
+        return Mono.just(responseCache.stats());
+    }
+
+    // 测试：curl http://localhost:8080/_proxy/coalescing
+    @GetMapping("/coalescing")
+    public Mono<Map<String, Object>> coalescing() {
+        return Mono.just(requestCoalescer.stats());
+    }
+
+    // 测试：curl http://localhost:8080/_proxy/negative
+    @GetMapping("/negative")
+    public Mono<Map<String, Object>> negative() {
+        return Mono.just(negativeResultCache.stats());
+    }
+}
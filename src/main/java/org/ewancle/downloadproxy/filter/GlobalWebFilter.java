@@ -1,29 +1,54 @@
 package org.ewancle.downloadproxy.filter;
 
 import jakarta.annotation.PostConstruct;
+import org.ewancle.downloadproxy.cache.CachedObject;
+import org.ewancle.downloadproxy.cache.NegativeResultCache;
+import org.ewancle.downloadproxy.cache.ProxyResponseCache;
+import org.ewancle.downloadproxy.service.GeoIpService;
+import org.ewancle.downloadproxy.service.GeoRegion;
 import org.ewancle.downloadproxy.service.ImageDownloadService;
+import org.ewancle.downloadproxy.service.RequestCoalescer;
+import org.ewancle.downloadproxy.service.RequestCoalescer.SharedResponse;
+import org.ewancle.downloadproxy.service.UpstreamHostSelector;
+import org.ewancle.downloadproxy.service.UserAgentService;
+import org.ewancle.downloadproxy.service.UserAgentService.ClientAgent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.ETag;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilter;
 import org.springframework.web.server.WebFilterChain;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.Arrays;
+import java.nio.channels.AsynchronousFileChannel;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Component
 //@DependsOn("webClientNoRedirect")
@@ -39,33 +64,67 @@ public class GlobalWebFilter implements WebFilter {
 
     private final ImageDownloadService imageDownloadService;
 
-    private static List<String> proxyHostList = List.of(
-            "http://baidu.com:11250",
-            "http://google.com:11250",
-            "http://aliyun.com:11250"
-    );
+    private final UpstreamHostSelector upstreamHostSelector;
+
+    private final ProxyResponseCache responseCache;
+
+    private final RequestCoalescer requestCoalescer;
+
+    private final NegativeResultCache negativeResultCache;
+
+    private final GeoIpService geoIpService;
+
+    private final UserAgentService userAgentService;
+
+    // 转发给上游的客户端请求头：Range 和条件请求
+    private static final List<String> FORWARD_HEADERS = List.of(
+            HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE);
+
+    // 透传给客户端的上游响应头
+    private static final List<String> RELAY_HEADERS = List.of(
+            HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_RANGE, HttpHeaders.ETAG,
+            HttpHeaders.LAST_MODIFIED, HttpHeaders.ACCEPT_RANGES);
+
+    // 本地处理的路径前缀（FileController、代理状态接口、IP 归属地接口），不走上游代理
+    private static final List<String> LOCAL_PATH_PREFIXES = List.of("/files", "/_proxy", "/geo");
 
     private static boolean streamFlag = false;
 
-    public GlobalWebFilter(Environment env, WebClient webClientNoRedirect, ImageDownloadService imageDownloadService) {
+    // 透传模式：上游 DataBuffer 直接写给客户端，不做 byte[] 中转（默认开启）
+    private static boolean relayFlag = true;
+
+    // 对冲请求：主请求超过百分位延迟仍无响应头时，向下一个主机补发 GET，先到先用
+    @Value("${proxy.hedge.enabled:true}")
+    private boolean hedgeEnabled;
+
+    public GlobalWebFilter(Environment env, WebClient webClientNoRedirect, ImageDownloadService imageDownloadService,
+                           UpstreamHostSelector upstreamHostSelector, ProxyResponseCache responseCache,
+                           RequestCoalescer requestCoalescer, NegativeResultCache negativeResultCache,
+                           GeoIpService geoIpService, UserAgentService userAgentService) {
         this.env = env;
         this.webClientNoRedirect = webClientNoRedirect;
         this.imageDownloadService = imageDownloadService;
+        this.upstreamHostSelector = upstreamHostSelector;
+        this.responseCache = responseCache;
+        this.requestCoalescer = requestCoalescer;
+        this.negativeResultCache = negativeResultCache;
+        this.geoIpService = geoIpService;
+        this.userAgentService = userAgentService;
     }
 
     @PostConstruct
     public void init(){
-        //String proxyHosts = env.getProperty("PROXY_HOSTS"); // JVM 启动参数或系统属性
-        String proxyHosts = System.getenv("PROXY_HOSTS");
-        System.out.println("proxyHosts = " +proxyHosts);
-        if(proxyHosts != null && !proxyHosts.isEmpty()){
-            proxyHostList = Arrays.asList(proxyHosts.split(","));
-        }
+        // PROXY_HOSTS 由 UpstreamHostSelector 解析和探测
         String streamFlagStr = System.getenv("STREAM_FLAG");
         if(streamFlagStr != null && !streamFlagStr.isEmpty()
                 && (streamFlagStr.equals("false") || streamFlagStr.equals("true"))){
             streamFlag = Boolean.parseBoolean(streamFlagStr);
         }
+        String relayFlagStr = System.getenv("RELAY_FLAG");
+        if(relayFlagStr != null && !relayFlagStr.isEmpty()
+                && (relayFlagStr.equals("false") || relayFlagStr.equals("true"))){
+            relayFlag = Boolean.parseBoolean(relayFlagStr);
+        }
     }
 
     @Override
@@ -80,22 +139,87 @@ public class GlobalWebFilter implements WebFilter {
             return exchange.getResponse().setComplete();
         }
 
+        // 客户端 IP 归属地，后续处理从 exchange 属性读取（命中缓存时不分配对象，未命中只读内存映射，不阻塞）
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        GeoRegion region = remoteAddress == null ? null : geoIpService.lookup(remoteAddress.getAddress());
+        if (region != null) {
+            exchange.getAttributes().put(GeoIpService.REGION_ATTRIBUTE, region);
+        }
+
+        // 客户端类型（设备、系统、客户端名称），按 UA 缓存；没解析过的 UA 在后台解析，这次请求不带
+        ClientAgent client = userAgentService.analyze(request.getHeaders().getFirst(HttpHeaders.USER_AGENT));
+        if (client != null) {
+            exchange.getAttributes().put(UserAgentService.CLIENT_ATTRIBUTE, client);
+        }
+
         // 请求路径
         final String path = request.getURI().getPath();
 
-        // 重试代理，转发请求
-        return Flux.fromIterable(proxyHostList)
-                //.flatMap(this::tryDirectFetchHead, 3)
-                .flatMap(host -> tryDirectFetchHead(host+path).onErrorResume(e -> Mono.empty()), proxyHostList.size())
+        // 本地接口直接放行
+        for (String prefix : LOCAL_PATH_PREFIXES) {
+            if (path.equals(prefix) || path.startsWith(prefix + "/")) {
+                return chain.filter(exchange);
+            }
+        }
+
+        // 按健康评分排好序的上游主机（后台探测维护，不再每次请求 HEAD 所有主机）
+        List<String> hosts = upstreamHostSelector.candidates();
+
+        if (relayFlag) {
+            // 标准化后的路径同时作为缓存和请求合并的 key
+            final String key = normalizePath(path);
+
+            // 先查两级缓存，命中直接本地返回
+            CachedObject cached = responseCache.lookup(key);
+            if (cached != null) {
+                return serveCached(exchange, cached);
+            }
+
+            // 跳过已知没有该路径的主机，全部已知未命中时直接 404
+            List<String> liveHosts = liveHosts(hosts, key);
+            if (liveHosts.isEmpty() && !hosts.isEmpty()) {
+                return respondMiss(exchange, hosts, key);
+            }
+
+            // Range / 条件请求不参与合并和缓存填充：请求头原样转发给上游，206、304 原样返回
+            HttpHeaders forward = forwardHeaders(request);
+            if (!forward.isEmpty()) {
+                return fetchUpstream(liveHosts, key, forward)
+                        .map(entity -> {
+                            applyProxyHeaders(exchange);
+                            return relayPassThrough(exchange, entity);
+                        })
+                        .switchIfEmpty(Mono.fromSupplier(() -> respondMiss(exchange, hosts, key)))
+                        .flatMap(write -> write);
+            }
+
+            // 同一路径的并发未命中只拉取一次，其余请求共享正在下载的响应体；透传的同时复制一份进缓存
+            return requestCoalescer.execute(key, () -> fetchUpstream(liveHosts, key, HttpHeaders.EMPTY)
+                            .map(entity -> new ResponseEntity<>(
+                                    responseCache.tee(key, entity.getHeaders(), entity.getBody()),
+                                    entity.getHeaders(), entity.getStatusCode())))
+                    .map(shared -> {
+                        applyProxyHeaders(exchange);
+                        return relay(exchange, shared);
+                    })
+                    // 所有主机都没有拿到 2xx：明确未命中返回 404，否则 503
+                    .switchIfEmpty(Mono.fromSupplier(() -> respondMiss(exchange, hosts, key)))
+                    .flatMap(write -> write);
+        }
+
+        List<String> liveHosts = liveHosts(hosts, path);
+        if (liveHosts.isEmpty() && !hosts.isEmpty()) {
+            return respondMiss(exchange, hosts, path);
+        }
+
+        // 重试代理，转发请求：按评分依次 HEAD，命中即停
+        return Flux.fromIterable(liveHosts)
+                .concatMap(host -> tryDirectFetchHead(host, path))
                 .next() // 只取第一个成功的
-                .flatMap(directUrl -> {
-                    System.out.println("direct url = " + directUrl);
+                .map(directUrl -> {
+                    logger.debug("direct url = {}", directUrl);
 
-                    // 设置响应头
-                    exchange.getResponse().getHeaders().add(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_JPEG_VALUE);
-                    exchange.getResponse().getHeaders().add(HttpHeaders.CACHE_CONTROL, "max-age=3600, public");
-                    //exchange.getResponse().getHeaders().add("X-Content-Source", "google-images");
-                    exchange.getResponse().getHeaders().add("Transfer-Encoding", "chunked");
+                    applyProxyHeaders(exchange);
 
                     if(!streamFlag){
                         Mono<DefaultDataBuffer> dataBufferMono = imageDownloadService.downloadImage(directUrl, true)
@@ -125,17 +249,354 @@ public class GlobalWebFilter implements WebFilter {
                         return exchange.getResponse().writeWith(dataBufferFlux);
                     }
                 })
-                /*.switchIfEmpty(
-                        Mono.fromRunnable(() -> exchange.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE))
-                                .then(exchange.getResponse().setComplete())
-                );*/
-                /*.switchIfEmpty(
-                        Mono.defer(() -> {
-                            exchange.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
-                            return exchange.getResponse().setComplete();
-                        })
-                )*/
-                ;
+                .switchIfEmpty(Mono.fromSupplier(() -> respondMiss(exchange, hosts, path)))
+                .flatMap(write -> write);
+    }
+
+    /**
+     * 过滤掉最近确认没有该路径的主机（未命中缓存），保持原有评分顺序
+     */
+    private List<String> liveHosts(List<String> hosts, String path) {
+        return hosts.stream().filter(host -> !negativeResultCache.isNegative(host, path)).toList();
+    }
+
+    /**
+     * 所有主机都没有可用响应：全部确认未命中（404/410/3xx）返回 404，有主机不可达或出错则返回 503
+     */
+    private Mono<Void> respondMiss(ServerWebExchange exchange, List<String> hosts, String path) {
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(negativeResultCache.allNegative(hosts, path)
+                ? HttpStatus.NOT_FOUND : HttpStatus.SERVICE_UNAVAILABLE);
+        return response.setComplete();
+    }
+
+    /**
+     * 设置代理响应头
+     */
+    private void applyProxyHeaders(ServerWebExchange exchange) {
+        exchange.getResponse().getHeaders().add(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_JPEG_VALUE);
+        exchange.getResponse().getHeaders().add(HttpHeaders.CACHE_CONTROL, "max-age=3600, public");
+        //exchange.getResponse().getHeaders().add("X-Content-Source", "google-images");
+        // 不再手动设置 Transfer-Encoding：有 Content-Length 时按长度发送，没有时 Netty 自动分块
+    }
+
+    /**
+     * 需要转发给上游的 Range / 条件请求头，没有时为空
+     */
+    private static HttpHeaders forwardHeaders(ServerHttpRequest request) {
+        HttpHeaders forward = new HttpHeaders();
+        for (String name : FORWARD_HEADERS) {
+            List<String> values = request.getHeaders().get(name);
+            if (values != null && !values.isEmpty()) {
+                forward.put(name, values);
+            }
+        }
+        if (forward.containsKey(HttpHeaders.RANGE)) {
+            // 压缩后的字节偏移和原文件不一致，Range 请求要求上游返回原始内容
+            forward.set(HttpHeaders.ACCEPT_ENCODING, "identity");
+        }
+        return forward;
+    }
+
+    /**
+     * 标准化请求路径：去掉 . / .. 和重复的 /
+     */
+    private static String normalizePath(String path) {
+        String cleaned = StringUtils.cleanPath(path).replaceAll("/{2,}", "/");
+        return cleaned.startsWith("/") ? cleaned : "/" + cleaned;
+    }
+
+    /**
+     * 从上游拉取：开启对冲且至少两个可用主机时对冲，否则按评分依次 GET，第一个 2xx 即返回
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> fetchUpstream(List<String> hosts, String path, HttpHeaders forward) {
+        if (hedgeEnabled && hosts.size() > 1 && upstreamHostSelector.usableCount() > 1) {
+            return hedgedFetch(hosts, path, forward);
+        }
+        return fetchInOrder(hosts, path, forward);
+    }
+
+    /**
+     * 按顺序逐个主机 GET，第一个 2xx 即返回
+     * 不用 concatMap(...).next()：next() 拿到响应后会取消 WebClient，Spring 取消时会自己订阅并丢弃响应体，
+     * 之后再订阅 body 会报 Rejecting additional inbound receiver
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> fetchInOrder(List<String> hosts, String path, HttpHeaders forward) {
+        Mono<ResponseEntity<Flux<DataBuffer>>> result = Mono.empty();
+        for (String host : hosts) {
+            result = result.switchIfEmpty(Mono.defer(() -> fetchFrom(host, path, forward)));
+        }
+        return result;
+    }
+
+    /**
+     * 对冲 GET：先请求最优主机，超过对冲延迟（或主请求已确认未命中）再向次优主机补发，
+     * 谁先拿到 2xx 响应头就用谁，另一个请求立即取消。两个都未命中时再依次尝试剩余主机。
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> hedgedFetch(List<String> hosts, String path, HttpHeaders forward) {
+        String primaryHost = hosts.get(0);
+        String hedgeHost = hosts.get(1);
+        AtomicBoolean committed = new AtomicBoolean();
+        Sinks.Empty<Void> primaryMissed = Sinks.empty();
+
+        Mono<ResponseEntity<Flux<DataBuffer>>> primary = fetchFrom(primaryHost, path, forward)
+                .doOnSuccess(entity -> {
+                    if (entity == null) {
+                        primaryMissed.tryEmitEmpty();
+                    }
+                })
+                .flatMap(entity -> commit(entity, committed));
+
+        Mono<ResponseEntity<Flux<DataBuffer>>> hedge = Mono.firstWithSignal(
+                        Mono.delay(upstreamHostSelector.hedgeDelay()).then(), primaryMissed.asMono())
+                .then(Mono.defer(() -> fetchFrom(hedgeHost, path, forward)))
+                .flatMap(entity -> commit(entity, committed));
+
+        return Mono.firstWithValue(primary, hedge)
+                // 两个请求都没有结果
+                .onErrorResume(NoSuchElementException.class, e -> Mono.empty())
+                .switchIfEmpty(fetchInOrder(hosts.subList(2, hosts.size()), path, forward));
+    }
+
+    /**
+     * 只有第一个到达的响应能提交，晚到的直接取消连接
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> commit(ResponseEntity<Flux<DataBuffer>> entity, AtomicBoolean committed) {
+        if (committed.compareAndSet(false, true)) {
+            return Mono.just(entity);
+        }
+        entity.getBody().subscribe(DataBufferUtils::release).dispose();
+        return Mono.empty();
+    }
+
+    /**
+     * 向指定主机发起 GET，拿到 2xx 响应头即返回；非 2xx 或出错返回 empty，由调用方尝试下一个主机
+     * 带条件请求头时 304 也直接返回，带 Range 时 416 也直接返回
+     * 结果回写给 UpstreamHostSelector 更新健康评分，404/410/3xx 记入未命中缓存
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> fetchFrom(String host, String path, HttpHeaders forward) {
+        long start = System.nanoTime();
+        // 有多个主机可切换，不在单个主机上退避重试
+        return imageDownloadService.relayImage(host + path, false, forward)
+                .flatMap(entity -> {
+                    long latency = System.nanoTime() - start;
+                    upstreamHostSelector.recordSuccess(host, latency);
+                    upstreamHostSelector.recordFetchLatency(latency);
+                    if (entity.getStatusCode().is2xxSuccessful()
+                            || (entity.getStatusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED) && !forward.isEmpty())) {
+                        return Mono.just(entity);
+                    }
+                    logger.debug("跳过非 2xx 响应: {}{} → {}", host, path, entity.getStatusCode());
+                    negativeResultCache.record(host, path, entity.getStatusCode());
+                    return discard(entity);
+                })
+                .onErrorResume(e -> {
+                    if (e instanceof WebClientResponseException wre && !wre.getStatusCode().is5xxServerError()) {
+                        // 主机可用，只是路径不存在
+                        upstreamHostSelector.recordSuccess(host, System.nanoTime() - start);
+                        if (wre.getStatusCode().isSameCodeAs(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                                && forward.containsKey(HttpHeaders.RANGE)) {
+                            return Mono.just(new ResponseEntity<>(Flux.<DataBuffer>empty(), wre.getHeaders(), wre.getStatusCode()));
+                        }
+                        negativeResultCache.record(host, path, wre.getStatusCode());
+                    } else {
+                        upstreamHostSelector.recordFailure(host);
+                        // 连续失败由 UpstreamHostSelector 熔断并告警，单次失败只记 debug
+                        logger.debug("请求失败: {}{} - {}", host, path, e.getMessage());
+                    }
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * 丢弃不使用的响应体，缓冲区归还到池
+     */
+    private <T> Mono<T> discard(ResponseEntity<Flux<DataBuffer>> entity) {
+        // map 而不是 doOnNext：then() 会把收到的元素交给丢弃钩子，已释放的缓冲区不能再传下去
+        return entity.getBody()
+                .map(DataBufferUtils::release)
+                .then(Mono.empty());
+    }
+
+    /**
+     * 透传上游响应：上游的池化 DataBuffer 直接交给 writeWith，写出后由 Netty 释放
+     * 不再整体缓存到堆上，首字节到达即可开始向客户端输出；合并的请求各自读取同一份缓冲区
+     */
+    private Mono<Void> relay(ServerWebExchange exchange, SharedResponse shared) {
+        ServerHttpResponse response = exchange.getResponse();
+        MediaType contentType = shared.getHeaders().getContentType();
+        if (contentType != null) {
+            response.getHeaders().setContentType(contentType);
+        }
+        copyRelayHeaders(shared.getHeaders(), response.getHeaders());
+        response.getHeaders().set("X-Cache", shared.isLeader() ? "MISS" : "COALESCED");
+        response.setStatusCode(HttpStatus.OK);
+        if (HttpMethod.HEAD.equals(exchange.getRequest().getMethod())) {
+            // HEAD 不读响应体，立即退出合并，不拖住其它读者
+            shared.release();
+            return response.setComplete();
+        }
+        return response.writeWith(shared.body(response.bufferFactory()))
+                .onErrorResume(error -> {
+                    // 已经开始写 body 时状态码无法再修改，这里只对未提交的响应生效
+                    response.setStatusCode(HttpStatus.INTERNAL_SERVER_ERROR);
+                    return response.setComplete();
+                })
+                // 写出前就失败、body 没被订阅时也要退出合并；已经订阅过时无影响
+                .doFinally(signal -> shared.release());
+    }
+
+    /**
+     * 透传 Range / 条件请求的上游响应：状态码（200/206/304/416）和长度、范围、校验头原样返回
+     */
+    private Mono<Void> relayPassThrough(ServerWebExchange exchange, ResponseEntity<Flux<DataBuffer>> entity) {
+        ServerHttpResponse response = exchange.getResponse();
+        MediaType contentType = entity.getHeaders().getContentType();
+        if (contentType != null) {
+            response.getHeaders().setContentType(contentType);
+        }
+        copyRelayHeaders(entity.getHeaders(), response.getHeaders());
+        response.getHeaders().set("X-Cache", "BYPASS");
+        response.setStatusCode(entity.getStatusCode());
+        return response.writeWith(entity.getBody())
+                .onErrorResume(error -> {
+                    response.setStatusCode(HttpStatus.INTERNAL_SERVER_ERROR);
+                    return response.setComplete();
+                });
+    }
+
+    private static void copyRelayHeaders(HttpHeaders upstream, HttpHeaders target) {
+        for (String name : RELAY_HEADERS) {
+            List<String> values = upstream.get(name);
+            if (values != null && !values.isEmpty()) {
+                target.put(name, values);
+            }
+        }
+    }
+
+    /**
+     * 返回缓存内容：内存层按块切片下发（不复制堆外内存），磁盘层零拷贝发送文件
+     * 条件请求命中返回 304，单段 Range 返回 206（多段 Range 按完整内容返回）
+     */
+    private Mono<Void> serveCached(ServerWebExchange exchange, CachedObject cached) {
+        HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        ServerHttpResponse response = exchange.getResponse();
+        HttpHeaders headers = response.getHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, cached.contentType() != null ? cached.contentType() : MediaType.IMAGE_JPEG_VALUE);
+        headers.set(HttpHeaders.CACHE_CONTROL, "max-age=3600, public");
+        if (cached.etag() != null) {
+            headers.set(HttpHeaders.ETAG, cached.etag());
+        }
+        if (cached.lastModified() != null) {
+            headers.set(HttpHeaders.LAST_MODIFIED, cached.lastModified());
+        }
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.set("X-Cache", cached.inMemory() ? "HIT-MEMORY" : "HIT-DISK");
+
+        // 客户端副本仍然有效，不发送 body（lookup 时持有的引用在这里释放）
+        if (isNotModified(requestHeaders, cached)) {
+            cached.release();
+            response.setStatusCode(HttpStatus.NOT_MODIFIED);
+            return response.setComplete();
+        }
+
+        long length = cached.length();
+        long position = 0;
+        long count = length;
+        HttpRange range = singleRange(requestHeaders, cached);
+        if (range != null) {
+            long start = range.getRangeStart(length);
+            long end = Math.min(range.getRangeEnd(length), length - 1);
+            if (start >= length || end < start) {
+                cached.release();
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                return response.setComplete();
+            }
+            position = start;
+            count = end - start + 1;
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        } else {
+            response.setStatusCode(HttpStatus.OK);
+        }
+        headers.setContentLength(count);
+
+        if (cached.inMemory()) {
+            return response.writeWith(responseCache.readMemory(cached, response.bufferFactory(), position, count));
+        }
+        // 磁盘层：lookup 时持有的文件引用在发送结束（或取消、出错）后释放，之前文件不会被淘汰删除
+        Mono<Void> write;
+        if (response instanceof ZeroCopyHttpOutputMessage zeroCopy) {
+            write = zeroCopy.writeWith(cached.file(), position, count);
+        } else {
+            long offset = position;
+            write = response.writeWith(DataBufferUtils.takeUntilByteCount(
+                    DataBufferUtils.readAsynchronousFileChannel(() -> AsynchronousFileChannel.open(cached.file()),
+                            offset, response.bufferFactory(), 64 * 1024), count));
+        }
+        return write.doFinally(signal -> cached.release());
+    }
+
+    /**
+     * If-None-Match 优先（弱比较）；没有时比较 If-Modified-Since 和缓存的 Last-Modified（秒级）
+     */
+    private static boolean isNotModified(HttpHeaders requestHeaders, CachedObject cached) {
+        String ifNoneMatch = requestHeaders.getFirst(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (cached.etag() == null) {
+                return false;
+            }
+            ETag current = ETag.create(cached.etag());
+            for (ETag tag : ETag.parse(ifNoneMatch)) {
+                if (tag.isWildcard() || tag.compare(current, false)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (cached.lastModified() == null || !requestHeaders.containsKey(HttpHeaders.IF_MODIFIED_SINCE)) {
+            return false;
+        }
+        try {
+            long ifModifiedSince = requestHeaders.getIfModifiedSince();
+            long lastModified = parseHttpDate(cached.lastModified());
+            return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 请求中的单段 Range；没有、格式错误、多段或 If-Range 不匹配时返回 null（按完整内容返回）
+     */
+    private static HttpRange singleRange(HttpHeaders requestHeaders, CachedObject cached) {
+        String rangeHeader = requestHeaders.getFirst(HttpHeaders.RANGE);
+        if (rangeHeader == null) {
+            return null;
+        }
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null) {
+            // If-Range 是 ETag 时强比较，是日期时要求和 Last-Modified 完全一致
+            boolean matches = ifRange.startsWith("\"") || ifRange.startsWith("W/")
+                    ? cached.etag() != null && ETag.create(ifRange).compare(ETag.create(cached.etag()), true)
+                    : ifRange.equals(cached.lastModified());
+            if (!matches) {
+                return null;
+            }
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long parseHttpDate(String value) {
+        HttpHeaders holder = new HttpHeaders();
+        holder.set(HttpHeaders.LAST_MODIFIED, value);
+        return holder.getLastModified();
     }
 
     /**
@@ -185,24 +646,33 @@ public class GlobalWebFilter implements WebFilter {
     }
 
 
-    private Mono<String> tryDirectFetchHead(String url) {
+    private Mono<String> tryDirectFetchHead(String host, String path) {
+        String url = host + path;
+        long start = System.nanoTime();
         return webClientNoRedirect
                 .head()
                 .uri(url)
                 .exchangeToMono(response -> {
                     HttpStatusCode status = response.statusCode();
+                    if (status.is5xxServerError()) {
+                        upstreamHostSelector.recordFailure(host);
+                    } else {
+                        upstreamHostSelector.recordSuccess(host, System.nanoTime() - start);
+                    }
+                    negativeResultCache.record(host, path, status);
                     if (status.is2xxSuccessful()) {
                         return Mono.just(url);
                     } else if (status.is3xxRedirection()) {
                         // 明确排除重定向响应
-                        System.out.println("🔁 跳过重定向 URL: " + url + " → " + status);
+                        logger.debug("跳过重定向 URL: {} → {}", url, status);
                         return Mono.empty();
                     } else {
                         return Mono.empty();
                     }
                 })
                 .onErrorResume(e -> {
-                    System.out.println("❌ 请求失败: " + url + " - " + e.getMessage());
+                    upstreamHostSelector.recordFailure(host);
+                    logger.debug("请求失败: {} - {}", url, e.getMessage());
                     return Mono.empty();
                 });
     }
@@ -0,0 +1,331 @@
+package org.ewancle.downloadproxy.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 内容寻址存储：上传内容按 SHA-256 只存一份（uploads/.blobs/ab/cd/{sha256}），
+ * 用户看到的文件名只是索引里指向摘要的一条引用；同一内容被多次上传时只增加引用计数，
+ * 最后一个引用删除时才删除内容文件。
+ * 索引是追加写的日志（uploads/.blobs/index.log），启动时重放并压缩。
+ */
+@Service
+public class BlobStoreService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobStoreService.class);
+
+    private final Path blobDir;
+
+    // 上传中的临时文件，和内容文件在同一文件系统，提交时原子移动
+    private final Path stagingDir;
+
+    private final Path indexFile;
+
+    // 文件名 -> 内容
+    private final Map<String, BlobRef> index = new ConcurrentHashMap<>();
+
+    // 摘要 -> 引用数
+    private final Map<String, Integer> refCounts = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final UploadWriter uploadWriter;
+
+    private FileChannel indexLog;
+
+    public BlobStoreService(UploadWriter uploadWriter, @Value("${files.storage.local.dir:uploads}") String localDir) {
+        this.uploadWriter = uploadWriter;
+        this.blobDir = Paths.get(localDir).toAbsolutePath().normalize().resolve(".blobs");
+        this.stagingDir = blobDir.resolve(".tmp");
+        this.indexFile = blobDir.resolve("index.log");
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(stagingDir);
+        // 上次没提交完的临时文件
+        try (DirectoryStream<Path> staged = Files.newDirectoryStream(stagingDir)) {
+            for (Path file : staged) {
+                Files.deleteIfExists(file);
+            }
+        }
+        replay();
+        compact();
+        indexLog = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logger.info("内容存储: {} 个文件名, {} 份内容", index.size(), refCounts.size());
+        // 提交到一半（内容已移入、索引未写）留下的无引用内容，后台清理
+        Mono.fromRunnable(this::sweepOrphans)
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        if (indexLog != null) {
+            indexLog.close();
+        }
+    }
+
+    /**
+     * 新的临时文件路径，上传内容先写到这里
+     */
+    public Path stagingFile() {
+        return stagingDir.resolve(UUID.randomUUID().toString());
+    }
+
+    /**
+     * 提交上传：内容已存在时丢弃临时文件只加引用，否则把临时文件移入内容目录（阻塞 IO）
+     *
+     * @return 内容文件
+     */
+    public Path commit(Path staged, String name, String sha256Hex, long size) throws IOException {
+        checkName(name);
+        Path blob = blobPath(sha256Hex);
+        AtomicInteger deduplicated = new AtomicInteger();
+        try {
+            // compute 对同一摘要串行，避免并发上传相同内容时重复移动或误删
+            refCounts.compute(sha256Hex, (digest, count) -> {
+                try {
+                    if (count == null && !Files.exists(blob)) {
+                        Files.createDirectories(blob.getParent());
+                        Files.move(staged, blob, StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.deleteIfExists(staged);
+                        deduplicated.set(1);
+                    }
+                } catch (IOException e) {
+                    throw new BlobStoreException(e);
+                }
+                return count == null ? 1 : count + 1;
+            });
+        } catch (BlobStoreException e) {
+            throw e.getCause();
+        }
+        BlobRef ref = new BlobRef(sha256Hex, size, System.currentTimeMillis());
+        appendLog(logLine(name, ref));
+        BlobRef previous = index.put(name, ref);
+        if (previous != null) {
+            release(previous.digest());
+        }
+        listeners.forEach(listener -> listener.onPut(name, ref, blob));
+        if (deduplicated.get() == 1) {
+            logger.debug("内容已存在，只增加引用: {} -> {}", name, sha256Hex);
+        }
+        return blob;
+    }
+
+    /**
+     * 提交并按落盘策略刷新内容所在目录和索引日志（并发上传的索引日志刷新可以合并成一次）
+     */
+    public Mono<Path> commitAsync(Path staged, String name, String sha256Hex, long size) {
+        return Mono.fromCallable(() -> commit(staged, name, sha256Hex, size))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(blob -> uploadWriter.syncDirectory(blob.getParent())
+                        .then(uploadWriter.sync(indexLog))
+                        .thenReturn(blob));
+    }
+
+    /**
+     * 文件名对应的内容文件，不在存储里返回 null
+     */
+    public Path resolve(String name) {
+        BlobRef ref = index.get(name);
+        return ref == null ? null : blobPath(ref.digest());
+    }
+
+    public BlobRef get(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * 当前所有引用的快照
+     */
+    public Map<String, BlobRef> entries() {
+        return Map.copyOf(index);
+    }
+
+    public Path blobPath(BlobRef ref) {
+        return blobPath(ref.digest());
+    }
+
+    /**
+     * 订阅引用的增加和删除，在提交或删除的线程上回调
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 删除一个文件名（阻塞 IO），最后一个引用删除时删除内容
+     *
+     * @return 文件名是否存在
+     */
+    public boolean delete(String name) throws IOException {
+        BlobRef ref = index.remove(name);
+        if (ref == null) {
+            return false;
+        }
+        appendLog("-\t" + name);
+        release(ref.digest());
+        listeners.forEach(listener -> listener.onRemove(name));
+        return true;
+    }
+
+    public Mono<Boolean> deleteAsync(String name) {
+        return Mono.fromCallable(() -> delete(name))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 当前内容的引用数
+     */
+    public int refCount(String sha256Hex) {
+        return refCounts.getOrDefault(sha256Hex, 0);
+    }
+
+    private void release(String digest) {
+        refCounts.computeIfPresent(digest, (d, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            try {
+                Files.deleteIfExists(blobPath(d));
+            } catch (IOException e) {
+                logger.warn("删除内容失败: {}", d, e);
+            }
+            return null;
+        });
+    }
+
+    private Path blobPath(String sha256Hex) {
+        return blobDir.resolve(sha256Hex.substring(0, 2)).resolve(sha256Hex.substring(2, 4)).resolve(sha256Hex);
+    }
+
+    private static String logLine(String name, BlobRef ref) {
+        return "+\t" + ref.digest() + "\t" + ref.size() + "\t" + ref.createdAt() + "\t" + name;
+    }
+
+    private void appendLog(String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        synchronized (indexLog) {
+            while (bytes.hasRemaining()) {
+                indexLog.write(bytes);
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                if (fields[0].equals("+") && fields.length == 5) {
+                    index.put(fields[4], new BlobRef(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } else if (fields[0].equals("-") && fields.length == 2) {
+                    index.remove(fields[1]);
+                }
+                // 其它行是崩溃时写了一半的记录，忽略
+            }
+        }
+        index.values().removeIf(ref -> !Files.exists(blobPath(ref.digest())));
+        index.values().forEach(ref -> refCounts.merge(ref.digest(), 1, Integer::sum));
+    }
+
+    /**
+     * 只保留当前的引用，重写索引日志
+     */
+    private void compact() throws IOException {
+        Path tmp = blobDir.resolve("index.log.tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, BlobRef> entry : index.entrySet()) {
+                writer.write(logLine(entry.getKey(), entry.getValue()) + "\n");
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void sweepOrphans() {
+        try (Stream<Path> files = Files.find(blobDir, 3,
+                (path, attrs) -> attrs.isRegularFile() && !path.startsWith(stagingDir) && !path.getParent().equals(blobDir))) {
+            files.forEach(blob -> refCounts.compute(blob.getFileName().toString(), (digest, count) -> {
+                if (count == null) {
+                    try {
+                        Files.deleteIfExists(blob);
+                        logger.info("删除无引用的内容: {}", digest);
+                    } catch (IOException e) {
+                        logger.warn("删除内容失败: {}", digest, e);
+                    }
+                }
+                return count;
+            }));
+        } catch (IOException e) {
+            logger.warn("清理无引用内容失败", e);
+        }
+    }
+
+    private static void checkName(String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains("..")
+                || name.chars().anyMatch(c -> c == '\t' || c == '\n' || c == '\r')) {
+            throw new IllegalArgumentException("非法文件名: " + name);
+        }
+    }
+
+    /**
+     * 一条引用：内容摘要、大小和提交时间
+     */
+    public record BlobRef(String digest, long size, long createdAt) {
+    }
+
+    /**
+     * 引用变化的回调
+     */
+    public interface Listener {
+
+        void onPut(String name, BlobRef ref, Path blob);
+
+        void onRemove(String name);
+    }
+
+    private static class BlobStoreException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        BlobStoreException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
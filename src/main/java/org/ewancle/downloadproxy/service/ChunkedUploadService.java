@@ -0,0 +1,130 @@
+package org.ewancle.downloadproxy.service;
+
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.ewancle.downloadproxy.service.UploadSessionService.UploadSession;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 分片上传：第一个分片到达时按 total × chunkSize 预分配（稀疏）目标文件，
+ * 每个分片直接写到 index × chunkSize 的位置，分片可以并行、乱序上传；
+ * 合并只需截断到实际大小并原子重命名，不再复制数据。
+ * 已收到的分片记录在 UploadSessionService 的会话日志里，重启后可以续传。
+ * 每个分片写入时计算校验值；合并时由各分片的 CRC32C 组合出整个文件的 CRC32C。
+ */
+@Service
+public class ChunkedUploadService {
+
+    public static final long DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final Path rootLocation;
+
+    private final UploadSessionService uploadSessionService;
+
+    private final UploadChecksumService uploadChecksumService;
+
+    private final UploadWriter uploadWriter;
+
+    public ChunkedUploadService(UploadSessionService uploadSessionService, UploadChecksumService uploadChecksumService,
+                                UploadWriter uploadWriter, @Value("${files.storage.local.dir:uploads}") String localDir) {
+        this.rootLocation = Paths.get(localDir).toAbsolutePath().normalize();
+        this.uploadSessionService = uploadSessionService;
+        this.uploadChecksumService = uploadChecksumService;
+        this.uploadWriter = uploadWriter;
+    }
+
+    /**
+     * 写入一个分片，除最后一片外每片必须正好 chunkSize 字节
+     *
+     * @param digestSources 客户端校验头的来源（分片头、请求头），校验失败时分片不记为已收到
+     */
+    public Mono<Void> writeChunk(String fileId, int index, int total, long chunkSize, Flux<DataBuffer> content,
+                                 HttpHeaders... digestSources) {
+        if (index < 0 || index >= total) {
+            return Mono.error(new IllegalArgumentException("分片序号超出范围: " + index + "/" + total));
+        }
+        // 打开会话、预分配文件是阻塞 IO
+        return Mono.fromCallable(() -> uploadSessionService.open(fileId, total, chunkSize))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(session -> {
+                    long position = index * session.chunkSize();
+                    Checksum checksum = uploadChecksumService.begin();
+                    Flux<DataBuffer> counted = checksum.tap(content).doOnNext(buffer -> {
+                        if (checksum.size() > session.chunkSize()) {
+                            // 抛出异常时当前缓冲区既不会传下去也不会被丢弃，先释放
+                            DataBufferUtils.release(buffer);
+                            throw new IllegalArgumentException("分片超过 chunkSize: chunk-" + index);
+                        }
+                    });
+                    // 每个分片独立打开通道，按位置写入，互不影响；按落盘策略刷盘后才记为已收到
+                    return uploadWriter.write(counted, session.file(), position)
+                            .then(Mono.fromRunnable(() -> {
+                                uploadChecksumService.verify(checksum, digestSources);
+                                session.markReceived(index, checksum.size(), checksum.crc32c());
+                            }));
+                });
+    }
+
+    /**
+     * 已收到的分片序号；没有这个上传时为空（客户端从头上传）
+     */
+    public Mono<List<Integer>> status(String fileId) {
+        return Mono.fromCallable(() -> {
+                    UploadSession session = uploadSessionService.find(fileId);
+                    return session == null ? List.<Integer>of() : session.receivedChunks();
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 所有分片到齐后完成上传：校验整个文件的 CRC32C（如果客户端提供）、截断到实际大小、原子移动到上传目录
+     *
+     * @return 最终文件
+     */
+    public Mono<Path> complete(String fileId, String filename, int total, HttpHeaders... digestSources) {
+        return Mono.fromCallable(() -> {
+                    UploadSession session = uploadSessionService.find(fileId);
+                    if (session == null) {
+                        throw new IllegalStateException("上传不存在: " + fileId);
+                    }
+                    if (session.total() != total) {
+                        throw new IllegalArgumentException("分片总数不一致: " + total + " != " + session.total());
+                    }
+                    int missing = session.firstMissing();
+                    if (missing >= 0) {
+                        throw new IllegalStateException("缺少分片: chunk-" + missing);
+                    }
+                    int crc32c = session.fileCrc32c();
+                    uploadChecksumService.verifyCrc32c(crc32c, digestSources);
+                    long size = (total - 1) * session.chunkSize() + session.lastChunkLength();
+                    try (FileChannel channel = FileChannel.open(session.file(), StandardOpenOption.WRITE)) {
+                        channel.truncate(size);
+                    }
+                    Path target = rootLocation.resolve(UUID.randomUUID() + "-" + filename);
+                    Files.move(session.file(), target, StandardCopyOption.ATOMIC_MOVE);
+                    uploadSessionService.remove(session);
+                    return Tuples.of(target, size, crc32c);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                // 分片上传只有组合出来的 CRC32C，没有整个文件的 SHA-256
+                .flatMap(result -> uploadChecksumService.saveMetadata(result.getT1(), result.getT2(), null, result.getT3())
+                        .then(uploadWriter.syncDirectory(rootLocation))
+                        .thenReturn(result.getT1()));
+    }
+}
@@ -0,0 +1,344 @@
+package org.ewancle.downloadproxy.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.ewancle.downloadproxy.service.BlobStoreService.BlobRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * 上传目录的文件元数据索引：启动时并行遍历一次，之后由 WatchService 和内容存储的回调保持最新，
+ * 缓存大小、修改时间、MIME 和 ETag；下载和元数据接口都查这里，不再每次 stat 文件。
+ * 内容存储里的文件 ETag 是内容摘要，普通文件用大小和修改时间生成弱 ETag。
+ * 同时维护按文件名和按修改时间排序的索引，列表接口按游标分页，不扫描目录。
+ */
+@Service
+public class FileMetadataIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileMetadataIndex.class);
+
+    private final Path rootLocation;
+
+    private static final Comparator<FileMetadata> BY_NAME = Comparator.comparing(FileMetadata::name);
+
+    private static final Comparator<FileMetadata> BY_MTIME =
+            Comparator.comparingLong(FileMetadata::lastModified).thenComparing(FileMetadata::name);
+
+    // 所有修改都通过 entries.compute，同一文件名串行，两个排序索引跟着一起更新
+    private final Map<String, FileMetadata> entries = new ConcurrentHashMap<>();
+
+    private final NavigableSet<FileMetadata> byName = new ConcurrentSkipListSet<>(BY_NAME);
+
+    private final NavigableSet<FileMetadata> byMtime = new ConcurrentSkipListSet<>(BY_MTIME);
+
+    private final BlobStoreService blobStoreService;
+
+    private WatchService watchService;
+
+    public FileMetadataIndex(BlobStoreService blobStoreService, @Value("${files.storage.local.dir:uploads}") String localDir) {
+        this.blobStoreService = blobStoreService;
+        this.rootLocation = Paths.get(localDir).toAbsolutePath().normalize();
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(rootLocation);
+        // 先注册监听再遍历，遍历期间的变化不会丢
+        watchService = rootLocation.getFileSystem().newWatchService();
+        rootLocation.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        blobStoreService.addListener(new BlobStoreService.Listener() {
+            @Override
+            public void onPut(String name, BlobRef ref, Path blob) {
+                put(name, blobMetadata(name, ref, blob), (old, updated) -> updated);
+            }
+
+            @Override
+            public void onRemove(String name) {
+                removeIf(name, true);
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        scan();
+        blobStoreService.entries().forEach((name, ref) ->
+                put(name, blobMetadata(name, ref, blobStoreService.blobPath(ref)), (old, updated) -> updated));
+        logger.info("文件元数据索引: {} 个文件, 耗时 {} ms", entries.size(), System.currentTimeMillis() - start);
+
+        Thread.ofPlatform().daemon().name("file-index-watcher").start(this::watch);
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * 索引里的元数据，不存在返回 null（不访问文件系统）
+     */
+    public FileMetadata get(String name) {
+        if (name == null || name.startsWith(".")) {
+            return null;
+        }
+        return entries.get(name);
+    }
+
+    /**
+     * 立即刷新一个上传目录下的文件（例如分片合并完成后），不等监听事件
+     */
+    public Mono<FileMetadata> refresh(Path file) {
+        return Mono.fromCallable(() -> update(file.getFileName().toString()))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 分页列出文件：从游标之后开始，最多 limit 条
+     *
+     * @param prefix 文件名前缀，可为空
+     * @param cursor 上一页最后一条（{@link #cursorOf}），为空从头开始
+     * @param byModified true 按修改时间排序，false 按文件名排序
+     */
+    public List<FileMetadata> list(String prefix, String cursor, boolean byModified, boolean descending, int limit) {
+        return list(prefix, parseCursor(cursor, byModified), byModified, descending, limit);
+    }
+
+    /**
+     * 按文件名升序列出 startAfter 之后的文件
+     */
+    public List<FileMetadata> list(String prefix, String startAfter, int limit) {
+        return list(prefix, startAfter == null ? null : probe(startAfter, 0), false, false, limit);
+    }
+
+    private List<FileMetadata> list(String prefix, FileMetadata after, boolean byModified, boolean descending, int limit) {
+        String namePrefix = prefix == null ? "" : prefix;
+        NavigableSet<FileMetadata> sorted = byModified ? byMtime : byName;
+        if (descending) {
+            sorted = sorted.descendingSet();
+        }
+        Comparator<? super FileMetadata> order = sorted.comparator();
+        // 按文件名排序时前缀是一个连续区间：直接跳到区间起点，离开区间就结束
+        boolean contiguous = !byModified && !namePrefix.isEmpty();
+        NavigableSet<FileMetadata> view = sorted;
+        if (contiguous) {
+            FileMetadata start = probe(descending ? namePrefix + Character.MAX_VALUE : namePrefix, 0);
+            if (after == null || order.compare(start, after) > 0) {
+                view = sorted.tailSet(start, true);
+                after = null;
+            }
+        }
+        if (after != null) {
+            view = sorted.tailSet(after, false);
+        }
+        List<FileMetadata> page = new ArrayList<>(Math.min(limit, 1024));
+        Iterator<FileMetadata> iterator = view.iterator();
+        while (page.size() < limit && iterator.hasNext()) {
+            FileMetadata metadata = iterator.next();
+            if (metadata.name().startsWith(namePrefix)) {
+                page.add(metadata);
+            } else if (contiguous) {
+                break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * 一条记录对应的游标，下一页从它之后开始
+     */
+    public static String cursorOf(FileMetadata metadata, boolean byModified) {
+        return cursorOf(byModified ? metadata.lastModified() + ":" + metadata.name() : metadata.name());
+    }
+
+    /**
+     * 按文件名排序时游标就是编码后的文件名
+     */
+    public static String cursorOf(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 按文件名排序的游标对应的文件名，为空返回 null
+     */
+    public static String nameOf(String cursor) {
+        FileMetadata after = parseCursor(cursor, false);
+        return after == null ? null : after.name();
+    }
+
+    private static FileMetadata parseCursor(String cursor, boolean byModified) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!byModified) {
+                return probe(value, 0);
+            }
+            int separator = value.indexOf(':');
+            return probe(value.substring(separator + 1), Long.parseLong(value.substring(0, separator)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("非法游标: " + cursor);
+        }
+    }
+
+    /**
+     * 只用于在排序索引里定位的占位记录
+     */
+    private static FileMetadata probe(String name, long lastModified) {
+        return new FileMetadata(name, null, 0, lastModified, null, null, false);
+    }
+
+    /**
+     * 写入一条记录，两个排序索引一起更新
+     */
+    private FileMetadata put(String name, FileMetadata metadata,
+                             BiFunction<FileMetadata, FileMetadata, FileMetadata> resolver) {
+        return entries.compute(name, (key, old) -> {
+            FileMetadata current = old == null ? metadata : resolver.apply(old, metadata);
+            if (current != old) {
+                if (old != null) {
+                    byName.remove(old);
+                    byMtime.remove(old);
+                }
+                byName.add(current);
+                byMtime.add(current);
+            }
+            return current;
+        });
+    }
+
+    /**
+     * 移除一条记录；blob 为 true 只移除内容存储里的引用，否则只移除普通文件
+     */
+    private void removeIf(String name, boolean blob) {
+        entries.computeIfPresent(name, (key, old) -> {
+            if (old.blob() != blob) {
+                return old;
+            }
+            byName.remove(old);
+            byMtime.remove(old);
+            return null;
+        });
+    }
+
+    /**
+     * 并行遍历上传目录（只看第一层普通文件，以 . 开头的是内部目录）
+     */
+    private void scan() throws IOException {
+        try (Stream<Path> files = Files.list(rootLocation)) {
+            files.parallel()
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .forEach(path -> update(path.getFileName().toString()));
+        }
+    }
+
+    /**
+     * 重新读取一个普通文件的属性；文件已不存在时移除（内容存储里的同名引用不受影响）
+     */
+    private FileMetadata update(String name) {
+        if (name.startsWith(".")) {
+            return null;
+        }
+        Path file = rootLocation.resolve(name);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                long lastModified = attrs.lastModifiedTime().toMillis();
+                String etag = "W/\"" + Long.toHexString(attrs.size()) + "-" + Long.toHexString(lastModified) + "\"";
+                FileMetadata metadata = new FileMetadata(name, file, attrs.size(), lastModified,
+                        mediaType(name), etag, false);
+                return put(name, metadata, (old, updated) -> old.blob() ? old : updated);
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException e) {
+            logger.warn("读取文件属性失败: {}", file, e);
+        }
+        removeIf(name, false);
+        return null;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // 事件丢失，整个目录重新对一遍
+                        logger.warn("文件监听事件溢出，重新扫描上传目录");
+                        entries.values().stream()
+                                .filter(metadata -> !metadata.blob() && !Files.exists(metadata.path()))
+                                .forEach(metadata -> removeIf(metadata.name(), false));
+                        scan();
+                    } else {
+                        update(((Path) event.context()).toString());
+                    }
+                }
+                if (!key.reset()) {
+                    logger.warn("上传目录监听失效: {}", rootLocation);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 关闭
+        } catch (IOException e) {
+            logger.warn("文件监听失败", e);
+        }
+    }
+
+    private static FileMetadata blobMetadata(String name, BlobRef ref, Path blob) {
+        return new FileMetadata(name, blob, ref.size(), ref.createdAt(), mediaType(name),
+                "\"" + ref.digest() + "\"", true);
+    }
+
+    /**
+     * 按扩展名判断 MIME（Files.probeContentType 可能读文件内容，很慢）
+     */
+    private static MediaType mediaType(String name) {
+        return MediaTypeFactory.getMediaType(name).orElse(MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+    /**
+     * 一个文件的元数据
+     *
+     * @param path 实际读取的文件（内容存储里的文件是内容文件）
+     * @param blob 是否在内容存储里
+     */
+    public record FileMetadata(String name, Path path, long size, long lastModified, MediaType mediaType,
+                               String etag, boolean blob) {
+    }
+}
@@ -0,0 +1,206 @@
+package org.ewancle.downloadproxy.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 文件区间下载：按请求的位置直接打开文件读取（不再从头读再 skip），
+ * 单段 Range 优先零拷贝发送，多段 Range 返回 multipart/byteranges，支持后缀区间 bytes=-N
+ * 明文 HTTP 下整文件和单段区间都走零拷贝（sendfile），TLS 连接无法 sendfile，退回池化缓冲区分块读取
+ */
+@Service
+public class FileRangeService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 按 Range 请求头写出文件；没有 Range 时返回完整文件
+     *
+     * @param fileSize 文件大小（调用方已经取得）
+     */
+    public Mono<Void> write(ServerHttpRequest request, ServerHttpResponse response, Path file, long fileSize,
+                            MediaType contentType) {
+        return write(request, response, file, (position, count, bufferFactory) -> read(file, position, count, bufferFactory),
+                fileSize, contentType);
+    }
+
+    /**
+     * 不在本地文件系统的内容（对象存储、段文件）：按区间读取，不能零拷贝
+     */
+    public Mono<Void> write(ServerHttpRequest request, ServerHttpResponse response, RegionReader reader, long fileSize,
+                            MediaType contentType) {
+        return write(request, response, null, reader, fileSize, contentType);
+    }
+
+    private Mono<Void> write(ServerHttpRequest request, ServerHttpResponse response, Path file, RegionReader reader,
+                             long fileSize, MediaType contentType) {
+        String rangeHeader = request.getHeaders().getFirst(HttpHeaders.RANGE);
+        HttpHeaders headers = response.getHeaders();
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            headers.setContentType(contentType);
+            headers.setContentLength(fileSize);
+            response.setStatusCode(HttpStatus.OK);
+            return writeRegion(request, response, file, reader, 0, fileSize);
+        }
+
+        List<long[]> regions;
+        try {
+            regions = satisfiableRegions(HttpRange.parseRanges(rangeHeader), fileSize);
+        } catch (IllegalArgumentException e) {
+            regions = List.of();
+        }
+        if (regions.isEmpty()) {
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+            response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            return response.setComplete();
+        }
+
+        response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        if (regions.size() == 1) {
+            long[] region = regions.get(0);
+            headers.setContentType(contentType);
+            headers.setContentLength(region[1]);
+            headers.set(HttpHeaders.CONTENT_RANGE, contentRange(region, fileSize));
+            return writeRegion(request, response, file, reader, region[0], region[1]);
+        }
+        return writeMultipart(response, reader, fileSize, regions, contentType);
+    }
+
+    /**
+     * 从 position 开始读取 count 个字节，只读请求的区间
+     */
+    public Flux<DataBuffer> read(Path file, long position, long count, DataBufferFactory bufferFactory) {
+        if (count <= 0) {
+            return Flux.empty();
+        }
+        return DataBufferUtils.takeUntilByteCount(
+                DataBufferUtils.readAsynchronousFileChannel(
+                        () -> AsynchronousFileChannel.open(file, StandardOpenOption.READ),
+                        position, bufferFactory, BUFFER_SIZE),
+                count);
+    }
+
+    /**
+     * 写出文件的 [position, position + count) 区间，响应头由调用方设置
+     */
+    public Mono<Void> writeFile(ServerHttpRequest request, ServerHttpResponse response, Path file,
+                                long position, long count) {
+        if (isZeroCopy(request, response)) {
+            return ((ZeroCopyHttpOutputMessage) response).writeWith(file, position, count);
+        }
+        return response.writeWith(read(file, position, count, response.bufferFactory()));
+    }
+
+    private Mono<Void> writeRegion(ServerHttpRequest request, ServerHttpResponse response, Path file, RegionReader reader,
+                                   long position, long count) {
+        if (file != null) {
+            return writeFile(request, response, file, position, count);
+        }
+        return response.writeWith(reader.read(position, count, response.bufferFactory()));
+    }
+
+    /**
+     * 是否可以零拷贝发送：明文连接且底层支持 sendfile（TLS 需要在用户态加密，FileRegion 不可用）
+     */
+    public boolean isZeroCopy(ServerHttpRequest request, ServerHttpResponse response) {
+        return request.getSslInfo() == null && response instanceof ZeroCopyHttpOutputMessage;
+    }
+
+    /**
+     * 多段区间：每段前写分隔头，段内容按位置读取；总长度可以预先算出
+     */
+    private Mono<Void> writeMultipart(ServerHttpResponse response, RegionReader reader, long fileSize,
+                                      List<long[]> regions, MediaType contentType) {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        DataBufferFactory bufferFactory = response.bufferFactory();
+
+        List<byte[]> partHeaders = new ArrayList<>(regions.size());
+        long contentLength = 0;
+        for (long[] region : regions) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(region, fileSize) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + region[1];
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+
+        HttpHeaders headers = response.getHeaders();
+        headers.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+        headers.setContentLength(contentLength);
+
+        Flux<DataBuffer> body = Flux.range(0, regions.size())
+                .concatMap(i -> Flux.concat(
+                        Mono.fromSupplier(() -> bufferFactory.wrap(partHeaders.get(i))),
+                        reader.read(regions.get(i)[0], regions.get(i)[1], bufferFactory)))
+                .concatWith(Mono.fromSupplier(() -> bufferFactory.wrap(end)));
+        return response.writeWith(body);
+    }
+
+    /**
+     * 转换成 [起始位置, 长度]，丢弃不可满足的区间（起点超过文件末尾）；
+     * 按起点排序后合并重叠和相邻的区间，bytes=0-,0-,... 这类重复区间不会把响应放大成多份文件，
+     * 合并后的总长度不超过文件大小，只剩一段时按单段返回
+     */
+    private static List<long[]> satisfiableRegions(List<HttpRange> ranges, long fileSize) {
+        List<long[]> regions = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            if (fileSize == 0) {
+                break;
+            }
+            long start = range.getRangeStart(fileSize);
+            long end = Math.min(range.getRangeEnd(fileSize), fileSize - 1);
+            if (start < fileSize && start <= end) {
+                regions.add(new long[]{start, end - start + 1});
+            }
+        }
+        regions.sort(Comparator.comparingLong(region -> region[0]));
+        List<long[]> merged = new ArrayList<>(regions.size());
+        for (long[] region : regions) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && region[0] <= last[0] + last[1]) {
+                last[1] = Math.max(last[0] + last[1], region[0] + region[1]) - last[0];
+            } else {
+                merged.add(region);
+            }
+        }
+        return merged;
+    }
+
+    private static String contentRange(long[] region, long fileSize) {
+        return "bytes " + region[0] + "-" + (region[0] + region[1] - 1) + "/" + fileSize;
+    }
+
+    /**
+     * 按区间读取内容：[position, position + count)
+     */
+    @FunctionalInterface
+    public interface RegionReader {
+
+        Flux<DataBuffer> read(long position, long count, DataBufferFactory bufferFactory);
+    }
+}
@@ -0,0 +1,418 @@
+package org.ewancle.downloadproxy.service;
+
+import io.netty.util.NetUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.ewancle.downloadproxy.cache.IpLookupCache;
+import org.lionsoul.ip2region.xdb.Header;
+import org.lionsoul.ip2region.xdb.LittleEndian;
+import org.lionsoul.ip2region.xdb.Searcher;
+import org.lionsoul.ip2region.xdb.Version;
+import org.lionsoul.ip2region.xdb.XdbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IP 归属地查询（ip2region xdb）：IPv4、IPv6 两个库都只读内存映射，查询直接读映射内存，
+ * 不为每次查询创建 Searcher、不占文件句柄，可以在任意线程（包括 Netty 事件循环）并发调用。
+ * 库文件不存在或无效时只记录警告，对应版本的查询返回 null。
+ * 查询结果按 IP 缓存在 IpLookupCache 里（原始类型键、开放寻址），值是去重、拆分好的 GeoRegion，
+ * 重复的客户端地址不再解析、查找，也不再生成新的字符串。
+ * 库配置成外部文件（file:）时监听文件变化，新库校验、映射、预热后原子替换，不用重启；
+ * 旧库的映射在正在进行的查询结束、不再被引用后由 GC 释放。
+ * 不经过 Ip2RegionUtils：它在类初始化时把整个 IPv4 库读进堆里，文件缺失时直接抛异常。
+ */
+@Service
+public class GeoIpService {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeoIpService.class);
+
+    /**
+     * GlobalWebFilter 放进 ServerWebExchange 的归属地属性，值为 GeoRegion
+     */
+    public static final String REGION_ATTRIBUTE = GeoIpService.class.getName() + ".region";
+
+    // 库里查不到的地址在缓存里的占位
+    private static final GeoRegion UNKNOWN = new GeoRegion(null, null, null, null);
+
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // OpenJDK 的 Inet4Address.hashCode 就是地址的 int 值，可以不复制地址字节；启动时确认一次
+    private static final boolean INET4_HASH_IS_ADDRESS = inet4HashIsAddress();
+
+    private final ResourceLoader resourceLoader;
+
+    @Value("${geo.ip2region.v4-db:classpath:ip2region/ip2region_v4.xdb}")
+    private String v4Location;
+
+    @Value("${geo.ip2region.v6-db:classpath:ip2region/ip2region_v6.xdb}")
+    private String v6Location;
+
+    // 外部库文件变化时自动重新加载
+    @Value("${geo.ip2region.watch:true}")
+    private boolean watch;
+
+    // 文件最后一次变化后等待多久再加载（复制大文件会触发多次修改事件）
+    @Value("${geo.ip2region.reload-delay:2s}")
+    private Duration reloadDelay;
+
+    // 缓存的 IP 个数上限（向上取 2 的幂），IPv4、IPv6 各一张表
+    @Value("${geo.cache.max-entries:65536}")
+    private int cacheMaxEntries;
+
+    // 当前使用的库和缓存，换库时整体替换；每次查询只读一次
+    private volatile Databases databases;
+
+    private WatchService watchService;
+
+    public GeoIpService(ResourceLoader resourceLoader) {
+        this.resourceLoader = resourceLoader;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        databases = new Databases(open(v4Location, Version.IPv4), open(v6Location, Version.IPv6), cacheMaxEntries);
+        if (watch) {
+            startWatcher();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * 按地址查询，找不到或库不可用时返回 null。
+     * IPv4 不复制地址字节，缓存命中时整个查询不分配对象
+     */
+    public GeoRegion lookup(InetAddress address) {
+        if (address instanceof Inet4Address && INET4_HASH_IS_ADDRESS) {
+            return databases.lookupV4(address.hashCode());
+        }
+        return address == null ? null : lookup(address.getAddress());
+    }
+
+    /**
+     * 按文本地址查询，地址非法、找不到或库不可用时返回 null
+     */
+    public GeoRegion lookup(String ip) {
+        byte[] address = parseIp(ip);
+        return address == null ? null : lookup(address);
+    }
+
+    /**
+     * 解析 IP 字面量（网络字节序），不是合法 IP 时返回 null。
+     * 不用 ip2region 的 Util.parseIP：它用 InetAddress.getByName，非 IP 的字符串会触发阻塞的 DNS 查询
+     */
+    public static byte[] parseIp(String ip) {
+        return ip == null ? null : NetUtil.createByteArrayFromIpAddressString(ip.trim());
+    }
+
+    /**
+     * @param ip 网络字节序，4 字节 IPv4 或 16 字节 IPv6
+     */
+    public GeoRegion lookup(byte[] ip) {
+        if (ip.length == 4) {
+            return databases.lookupV4((int) INT_BE.get(ip, 0));
+        }
+        if (ip.length == 16) {
+            return databases.lookupV6((long) LONG_BE.get(ip, 0), (long) LONG_BE.get(ip, 8));
+        }
+        return null;
+    }
+
+    public boolean isAvailable() {
+        Databases current = databases;
+        return current.v4 != null || current.v6 != null;
+    }
+
+    /**
+     * 重新加载一个版本的库：校验并映射新文件，用当前缓存里的地址预热新缓存，然后原子替换。
+     * 新文件无效时保留旧库
+     */
+    public synchronized void reload(Version version) {
+        boolean ipv4 = version.id == Version.IPv4.id;
+        String location = ipv4 ? v4Location : v6Location;
+        MappedXdb xdb = open(location, version);
+        if (xdb == null) {
+            logger.warn("新的 IP 归属地库无效，继续使用旧库 {}: {}", version.name, location);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Databases current = databases;
+        Databases next = ipv4 ? new Databases(xdb, current.v6, cacheMaxEntries)
+                : new Databases(current.v4, xdb, cacheMaxEntries);
+        // 把映射的页读进内存，再用热点地址填充新缓存，替换后的请求不用缺页、也不用重新查找
+        xdb.buffer.load();
+        current.cache.forEachKey(next::lookupV4, next::lookupV6);
+        databases = next;
+        logger.info("IP 归属地库已更新 {}: {}（预热 {} ms）", version.name, location, System.currentTimeMillis() - start);
+    }
+
+    private static boolean inet4HashIsAddress() {
+        try {
+            return InetAddress.getByAddress(new byte[]{1, 2, 3, 4}).hashCode() == 0x01020304;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private MappedXdb open(String location, Version expected) {
+        Resource resource = resourceLoader.getResource(location);
+        if (!resource.exists()) {
+            logger.warn("IP 归属地库不存在，不查询 {}: {}", expected.name, location);
+            return null;
+        }
+        try {
+            MappedXdb xdb = mapCopy(resource, expected);
+            if (xdb.version.id != expected.id) {
+                logger.warn("IP 归属地库版本不对，期望 {}，实际 {}: {}", expected.name, xdb.version.name, location);
+                return null;
+            }
+            logger.info("IP 归属地库 {}: {}（{} 字节，内存映射）", expected.name, location, xdb.buffer.capacity());
+            return xdb;
+        } catch (IOException | XdbException e) {
+            logger.warn("IP 归属地库无法加载，不查询 {}: {}", expected.name, location, e);
+            return null;
+        }
+    }
+
+    /**
+     * 复制到临时文件再映射：jar 里的资源不能直接映射，外部文件被原地覆盖时也不会改到正在使用的映射。
+     * 映射后临时文件可以删除
+     */
+    private static MappedXdb mapCopy(Resource resource, Version version) throws IOException, XdbException {
+        Path tempFile = Files.createTempFile("ip2region_" + version.name.toLowerCase(), ".xdb");
+        try (InputStream in = resource.getInputStream()) {
+            Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            return MappedXdb.map(tempFile);
+        } finally {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                // 有的平台不能删除已映射的文件
+                tempFile.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * 监听外部库文件所在的目录；classpath 里的库不监听
+     */
+    private void startWatcher() throws IOException {
+        Map<Path, Version> files = new HashMap<>();
+        putIfFile(files, v4Location, Version.IPv4);
+        putIfFile(files, v6Location, Version.IPv6);
+        if (files.isEmpty()) {
+            return;
+        }
+        watchService = files.keySet().iterator().next().getFileSystem().newWatchService();
+        for (Path directory : files.keySet().stream().map(Path::getParent).distinct().toList()) {
+            // 原地覆盖产生 MODIFY，写临时文件再 mv 产生 CREATE
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        logger.info("监听 IP 归属地库文件变化: {}", files.keySet());
+        Thread.ofPlatform().daemon().name("geo-db-watcher").start(() -> watch(files));
+    }
+
+    private void putIfFile(Map<Path, Version> files, String location, Version version) {
+        Resource resource = resourceLoader.getResource(location);
+        try {
+            if (resource.isFile()) {
+                files.put(resource.getFile().toPath().toAbsolutePath().normalize(), version);
+            }
+        } catch (IOException e) {
+            logger.debug("IP 归属地库不是本地文件，不监听: {}", location, e);
+        }
+    }
+
+    private void watch(Map<Path, Version> files) {
+        try {
+            while (true) {
+                Set<Version> changed = new HashSet<>();
+                WatchKey key = watchService.take();
+                // 收集事件直到安静 reloadDelay，避免加载写了一半的文件
+                while (key != null) {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() != StandardWatchEventKinds.OVERFLOW) {
+                            Version version = files.get(directory.resolve((Path) event.context()));
+                            if (version != null) {
+                                changed.add(version);
+                            }
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll(reloadDelay.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                changed.forEach(this::reload);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 关闭
+        }
+    }
+
+    /**
+     * 一起使用的库、查询缓存和归属地去重表；换库时整体替换，新缓存里不会混进旧库的结果
+     */
+    private static final class Databases {
+
+        private final MappedXdb v4;
+
+        private final MappedXdb v6;
+
+        private final IpLookupCache<GeoRegion> cache;
+
+        // 原始归属地字符串 -> 拆分好的实例，条目数不超过库里不同归属地的个数
+        private final Map<String, GeoRegion> regions = new ConcurrentHashMap<>();
+
+        Databases(MappedXdb v4, MappedXdb v6, int cacheMaxEntries) {
+            this.v4 = v4;
+            this.v6 = v6;
+            this.cache = new IpLookupCache<>(cacheMaxEntries);
+        }
+
+        GeoRegion lookupV4(int ip) {
+            GeoRegion region = cache.get(ip);
+            if (region == null) {
+                if (v4 == null) {
+                    return null;
+                }
+                byte[] bytes = new byte[4];
+                INT_BE.set(bytes, 0, ip);
+                region = regionOf(v4.search(bytes));
+                cache.put(ip, region);
+            }
+            return region == UNKNOWN ? null : region;
+        }
+
+        GeoRegion lookupV6(long high, long low) {
+            GeoRegion region = cache.get(high, low);
+            if (region == null) {
+                if (v6 == null) {
+                    return null;
+                }
+                byte[] bytes = new byte[16];
+                LONG_BE.set(bytes, 0, high);
+                LONG_BE.set(bytes, 8, low);
+                region = regionOf(v6.search(bytes));
+                cache.put(high, low, region);
+            }
+            return region == UNKNOWN ? null : region;
+        }
+
+        /**
+         * 相同的归属地字符串共用一个拆分好的实例；库里没有的地址也缓存（UNKNOWN），避免反复查找
+         */
+        private GeoRegion regionOf(String region) {
+            return region == null ? UNKNOWN : regions.computeIfAbsent(region, GeoRegion::parse);
+        }
+    }
+
+    /**
+     * 内存映射的 xdb：向量索引定位区间，再在段索引里二分查找（和 ip2region Searcher 的算法相同），
+     * 只用绝对位置读取，不修改缓冲区状态，所以可以并发查询
+     */
+    static final class MappedXdb {
+
+        private final MappedByteBuffer buffer;
+
+        private final Version version;
+
+        private MappedXdb(MappedByteBuffer buffer, Version version) {
+            this.buffer = buffer;
+            this.version = version;
+        }
+
+        static MappedXdb map(Path file) throws IOException, XdbException {
+            Searcher.verifyFromFile(file.toString());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("xdb 文件超过 2GB: " + file);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                // xdb 是小端序，在共享之前设置好
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                byte[] headerBytes = new byte[Searcher.HeaderInfoLength];
+                buffer.get(0, headerBytes);
+                Header header = new Header(headerBytes);
+                Version version = Version.fromHeader(header);
+                // 没复制完的文件：段索引超出文件末尾
+                if (header.endIndexPtr + version.segmentIndexSize > channel.size()) {
+                    throw new XdbException("xdb 文件不完整: " + file);
+                }
+                return new MappedXdb(buffer, version);
+            }
+        }
+
+        String search(byte[] ip) {
+            int vectorOffset = Searcher.HeaderInfoLength
+                    + (ip[0] & 0xFF) * Searcher.VectorIndexCols * Searcher.VectorIndexSize
+                    + (ip[1] & 0xFF) * Searcher.VectorIndexSize;
+            long startPtr = uint32(vectorOffset);
+            long endPtr = uint32(vectorOffset + 4);
+
+            int segmentSize = version.segmentIndexSize;
+            byte[] segment = new byte[segmentSize];
+            long low = 0;
+            long high = (endPtr - startPtr) / segmentSize;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                buffer.get((int) (startPtr + middle * segmentSize), segment);
+                if (version.ipSubCompare(ip, segment, 0) < 0) {
+                    high = middle - 1;
+                } else if (version.ipSubCompare(ip, segment, ip.length) > 0) {
+                    low = middle + 1;
+                } else {
+                    int dataLength = LittleEndian.getInt2(segment, ip.length * 2);
+                    long dataPtr = LittleEndian.getUint32(segment, ip.length * 2 + 2);
+                    byte[] region = new byte[dataLength];
+                    buffer.get((int) dataPtr, region);
+                    return new String(region, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private long uint32(int offset) {
+            return Integer.toUnsignedLong(buffer.getInt(offset));
+        }
+    }
+}
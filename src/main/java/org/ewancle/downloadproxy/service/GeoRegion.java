@@ -0,0 +1,31 @@
+package org.ewancle.downloadproxy.service;
+
+/**
+ * 拆分好的 IP 归属地，字段未知时为 null（ip2region 里的 "0"）。
+ * 由 GeoIpService 按原始字符串去重，相同归属地共用一个实例。
+ */
+public record GeoRegion(String country, String province, String city, String isp) {
+
+    /**
+     * 解析 ip2region 的归属地字符串，兼容两种数据格式：
+     * 新格式 国家|省份|城市|ISP|国家代码，旧格式 国家|区域|省份|城市|ISP
+     */
+    public static GeoRegion parse(String region) {
+        String[] fields = region.split("\\|", -1);
+        if (fields.length >= 5 && !isCountryCode(fields[4])) {
+            return new GeoRegion(field(fields, 0), field(fields, 2), field(fields, 3), field(fields, 4));
+        }
+        return new GeoRegion(field(fields, 0), field(fields, 1), field(fields, 2), field(fields, 3));
+    }
+
+    private static boolean isCountryCode(String field) {
+        return field.length() == 2 && Character.isUpperCase(field.charAt(0)) && Character.isUpperCase(field.charAt(1));
+    }
+
+    private static String field(String[] fields, int index) {
+        if (index >= fields.length || fields[index].isEmpty() || "0".equals(fields[index])) {
+            return null;
+        }
+        return fields[index].intern();
+    }
+}
@@ -2,8 +2,11 @@ package org.ewancle.downloadproxy.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
@@ -64,6 +67,45 @@ public class ImageDownloadService {
                 });
     }
 
+    /**
+     * 透传下载图片：直接返回上游 Netty 的 DataBuffer，不再转成 byte[] 再拷贝一次
+     * 响应头到达即返回，body 由调用方按需订阅（背压由写出端驱动），写出后由框架释放
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> relayImage(String imageUrl, boolean enableRetry) {
+        return relayImage(imageUrl, enableRetry, HttpHeaders.EMPTY);
+    }
+
+    /**
+     * 透传图片，附带客户端的 Range / 条件请求头；上游的 206、304 原样返回给调用方
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> relayImage(String imageUrl, boolean enableRetry, HttpHeaders forwardHeaders) {
+        return validateAndNormalizeUrl(imageUrl)
+                .flatMap(url -> {
+                    logger.info("开始透传图片: {}", url);
+                    return webClientNoRedirect.get()
+                            .uri(url)
+                            .headers(this::setHeaders)
+                            .headers(headers -> headers.putAll(forwardHeaders))
+                            .retrieve()
+                            // 使用 WebClientResponseException，便于 isRetryableError 判断状态码
+                            .onStatus(HttpStatusCode::isError, response -> response.createException())
+                            .toEntityFlux(DataBuffer.class)
+                            .doOnError(error -> {
+                                logger.error("透传图片失败: {}", url, error);
+                            })
+                            // 只在拿到响应头之前重试，body 一旦开始下发就不再重试
+                            .transform(mono -> !enableRetry ? mono : mono.retryWhen(Retry.backoff(3, Duration.ofSeconds(1))
+                                    .maxBackoff(Duration.ofSeconds(10))
+                                    .filter(this::isRetryableError)))
+                            .map(entity -> {
+                                Flux<DataBuffer> body = entity.getBody() == null ? Flux.empty() : entity.getBody();
+                                // 被丢弃（取消/出错）的缓冲区及时归还到池
+                                return new ResponseEntity<>(body.doOnDiscard(DataBuffer.class, DataBufferUtils::release),
+                                        entity.getHeaders(), entity.getStatusCode());
+                            });
+                });
+    }
+
     private Mono<byte[]> downloadImageInternal(String imageUrl, boolean enableCompression) {
         return validateAndNormalizeUrl(imageUrl)
                 .flatMap(url -> {
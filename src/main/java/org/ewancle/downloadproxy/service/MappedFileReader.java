@@ -0,0 +1,174 @@
+package org.ewancle.downloadproxy.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import org.ewancle.downloadproxy.utils.MappedBufferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 内存映射流式读取：按下游请求量逐块下发，读到哪里才映射到哪里（大窗口），
+ * 每块直接引用映射内存（不复制到堆上）；窗口内所有块写出释放后立即解除映射（MappedBufferUtils，不支持时由 GC 释放），
+ * 订阅完成、取消或出错时关闭文件并释放当前窗口。
+ */
+@Service
+public class MappedFileReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileReader.class);
+
+    // 单次映射的窗口大小
+    @Value("${files.mmap.window-size:64MB}")
+    private DataSize windowSize;
+
+    /**
+     * @param chunkSize 每个 DataBuffer 的大小
+     */
+    public Flux<DataBuffer> read(Path file, int chunkSize, DataBufferFactory bufferFactory) {
+        long window = Math.max(chunkSize, windowSize.toBytes());
+        return Flux.<DataBuffer, ReadState>generate(
+                        () -> new ReadState(FileChannel.open(file, StandardOpenOption.READ)),
+                        (state, sink) -> next(state, sink, chunkSize, window, bufferFactory),
+                        ReadState::close)
+                // 未写出就被丢弃的块也要释放，否则窗口无法解除映射
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                // 打开、映射文件不放在 Netty 线程上
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private ReadState next(ReadState state, SynchronousSink<DataBuffer> sink, int chunkSize, long window,
+                           DataBufferFactory bufferFactory) {
+        try {
+            if (state.position >= state.size) {
+                sink.complete();
+                return state;
+            }
+            if (state.region == null || state.position >= state.windowEnd) {
+                state.remap(window);
+            }
+            int offset = (int) (state.position - state.windowStart);
+            int length = (int) Math.min(chunkSize, state.windowEnd - state.position);
+            ByteBuffer slice = state.region.buffer.slice(offset, length);
+            state.position += length;
+            sink.next(wrap(new MappedChunk(state.region, slice), bufferFactory));
+        } catch (IOException e) {
+            sink.error(e);
+        }
+        return state;
+    }
+
+    private static DataBuffer wrap(ByteBuf chunk, DataBufferFactory bufferFactory) {
+        if (bufferFactory instanceof NettyDataBufferFactory nettyFactory) {
+            return nettyFactory.wrap(chunk);
+        }
+        byte[] bytes = new byte[chunk.readableBytes()];
+        chunk.readBytes(bytes);
+        chunk.release();
+        return bufferFactory.wrap(bytes);
+    }
+
+    private static final class ReadState {
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private long position;
+
+        private long windowStart;
+
+        private long windowEnd;
+
+        private MappedRegion region;
+
+        ReadState(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        void remap(long window) throws IOException {
+            releaseRegion();
+            windowStart = position;
+            windowEnd = Math.min(size, position + window);
+            region = new MappedRegion(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart));
+        }
+
+        void releaseRegion() {
+            if (region != null) {
+                region.release();
+                region = null;
+            }
+        }
+
+        void close() {
+            releaseRegion();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("关闭映射文件失败", e);
+            }
+        }
+    }
+
+    /**
+     * 一个映射窗口：读取状态持有一次引用，每个未释放的块各持有一次，归零时解除映射
+     */
+    static final class MappedRegion extends AbstractReferenceCounted {
+
+        final MappedByteBuffer buffer;
+
+        MappedRegion(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected void deallocate() {
+            MappedBufferUtils.unmap(buffer);
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    /**
+     * 引用映射内存的一块，Netty 写出后释放时归还窗口引用
+     */
+    static final class MappedChunk extends CompositeByteBuf {
+
+        private final MappedRegion region;
+
+        MappedChunk(MappedRegion region, ByteBuffer slice) {
+            super(UnpooledByteBufAllocator.DEFAULT, true, 1, Unpooled.wrappedBuffer(slice));
+            this.region = region;
+            region.retain();
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            region.release();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.ewancle.downloadproxy.service;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务端抓取（/files/fetch）用的下载：URL 由客户端提交，要防止借服务端访问内网（SSRF）。
+ * 只允许 http/https；主机先解析，任一地址是回环、内网、链路本地、任意地址或组播就拒绝；
+ * 配置了 files.fetch.allowed-hosts 时主机还必须在名单内（域名本身或其子域名）。
+ * 用独立的不跟随重定向的客户端，3xx 由这里逐跳重新校验后再请求；
+ * 建立连接时再检查一次实际连上的地址，防止校验之后 DNS 换成内网地址。
+ */
+@Service
+public class RemoteFetchService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RemoteFetchService.class);
+
+    // 最多跟随的重定向次数
+    private static final int MAX_REDIRECTS = 5;
+
+    // 允许抓取的主机，空表示不限（内网地址始终拒绝）
+    @Value("${files.fetch.allowed-hosts:}")
+    private List<String> allowedHosts;
+
+    private final ConnectionProvider provider;
+
+    private final WebClient webClient;
+
+    public RemoteFetchService() {
+        provider = ConnectionProvider.builder("remote-fetch")
+                .maxConnections(200)
+                .maxIdleTime(Duration.ofSeconds(30))
+                .pendingAcquireTimeout(Duration.ofSeconds(10))
+                .build();
+        HttpClient httpClient = HttpClient.create(provider)
+                .followRedirect(false)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .doOnConnected(conn -> {
+                    // 请求发出之前检查实际连上的地址，抛出的异常会让这次请求失败
+                    if (conn.channel().remoteAddress() instanceof InetSocketAddress remote
+                            && isBlocked(remote.getAddress())) {
+                        throw new IllegalArgumentException("不允许访问内网地址: " + remote.getAddress().getHostAddress());
+                    }
+                    conn.addHandlerLast(new ReadTimeoutHandler(30, TimeUnit.SECONDS))
+                            .addHandlerLast(new WriteTimeoutHandler(30, TimeUnit.SECONDS));
+                });
+        webClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        provider.dispose();
+    }
+
+    /**
+     * GET 远程文件：响应头到达即返回，body 由调用方订阅；错误状态为 WebClientResponseException，
+     * 地址不允许或重定向过多为 IllegalArgumentException；只在拿到响应头之前重试
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> get(String url, HttpHeaders headers) {
+        return Mono.fromCallable(() -> URI.create(url.trim()))
+                .onErrorMap(IllegalArgumentException.class, e -> new IllegalArgumentException("无效的 URL: " + url, e))
+                .flatMap(uri -> get(uri, headers, 0));
+    }
+
+    private Mono<ResponseEntity<Flux<DataBuffer>>> get(URI uri, HttpHeaders headers, int redirects) {
+        return check(uri)
+                .then(Mono.defer(() -> webClient.get()
+                        .uri(uri)
+                        .headers(h -> h.putAll(headers))
+                        .retrieve()
+                        .onStatus(HttpStatusCode::is3xxRedirection, response -> response.releaseBody()
+                                .then(Mono.error(new Redirect(response.headers().asHttpHeaders().getLocation()))))
+                        .onStatus(HttpStatusCode::isError, response -> response.createException())
+                        .toEntityFlux(DataBuffer.class)
+                        .retryWhen(Retry.backoff(3, Duration.ofSeconds(1))
+                                .maxBackoff(Duration.ofSeconds(10))
+                                .filter(RemoteFetchService::isRetryableError))))
+                .map(entity -> {
+                    Flux<DataBuffer> body = entity.getBody() == null ? Flux.empty() : entity.getBody();
+                    return new ResponseEntity<>(body.doOnDiscard(DataBuffer.class, DataBufferUtils::release),
+                            entity.getHeaders(), entity.getStatusCode());
+                })
+                .onErrorResume(Redirect.class, redirect -> {
+                    if (redirect.location == null) {
+                        return Mono.error(new IllegalArgumentException("重定向缺少 Location: " + uri));
+                    }
+                    if (redirects >= MAX_REDIRECTS) {
+                        return Mono.error(new IllegalArgumentException("重定向次数过多: " + uri));
+                    }
+                    URI next = uri.resolve(redirect.location);
+                    logger.debug("抓取重定向 {} -> {}", uri, next);
+                    return get(next, headers, redirects + 1);
+                });
+    }
+
+    /**
+     * 校验协议、主机名单和解析出的地址；解析是阻塞调用，放到 boundedElastic
+     */
+    private Mono<Void> check(URI uri) {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return Mono.error(new IllegalArgumentException("只支持 http/https: " + uri));
+        }
+        String host = uri.getHost();
+        if (host == null || host.isEmpty()) {
+            return Mono.error(new IllegalArgumentException("URL 缺少主机: " + uri));
+        }
+        if (!isAllowedHost(host)) {
+            return Mono.error(new IllegalArgumentException("主机不在允许列表: " + host));
+        }
+        return Mono.fromCallable(() -> InetAddress.getAllByName(host))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorMap(UnknownHostException.class, e -> new IllegalArgumentException("无法解析主机: " + host, e))
+                .flatMap(addresses -> {
+                    for (InetAddress address : addresses) {
+                        if (isBlocked(address)) {
+                            return Mono.error(new IllegalArgumentException(
+                                    "不允许访问内网地址: " + host + " -> " + address.getHostAddress()));
+                        }
+                    }
+                    return Mono.empty();
+                });
+    }
+
+    private boolean isAllowedHost(String host) {
+        if (allowedHosts.isEmpty()) {
+            return true;
+        }
+        String normalized = host.toLowerCase(Locale.ROOT);
+        for (String allowed : allowedHosts) {
+            String entry = allowed.trim().toLowerCase(Locale.ROOT);
+            if (!entry.isEmpty() && (normalized.equals(entry) || normalized.endsWith("." + entry))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 回环、内网（含 IPv6 fc00::/7）、链路本地、任意地址（含 0.0.0.0/8）和组播地址
+     */
+    static boolean isBlocked(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()
+                || address.isAnyLocalAddress() || address.isMulticastAddress()) {
+            return true;
+        }
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address) {
+            return (bytes[0] & 0xfe) == 0xfc;
+        }
+        return bytes[0] == 0;
+    }
+
+    private static boolean isRetryableError(Throwable error) {
+        if (error instanceof WebClientResponseException e) {
+            return e.getStatusCode().value() == 429 || e.getStatusCode().is5xxServerError();
+        }
+        return error instanceof IOException;
+    }
+
+    /**
+     * 上游返回 3xx，由 get 校验 Location 后继续
+     */
+    private static class Redirect extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient URI location;
+
+        Redirect(URI location) {
+            super(null, null, false, false);
+            this.location = location;
+        }
+    }
+}
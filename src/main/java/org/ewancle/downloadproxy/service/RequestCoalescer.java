@@ -0,0 +1,576 @@
+package org.ewancle.downloadproxy.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 同一路径的并发未命中请求合并（single-flight）：
+ * 第一个请求真正去上游拉取，同时到达的请求订阅同一份正在下载的响应体，各自按自己的速度读取。
+ * 响应头到达时只有一个参与者就直接透传上游响应体（背压直达上游，不缓冲），之后的请求各自拉取；
+ * 多个参与者时响应体分块保存在 Netty 池化内存里（每个读者拿到的是引用计数的 duplicate，不复制），
+ * 按最快读者的需求向上游请求，缓冲超过上限时暂停读取上游，所有读者都读过的分块立即释放。
+ * 已经释放过开头分块的拉取不再接受新的参与者（它们拿不到完整响应体），拉取完成或出错即从表中移除。
+ */
+@Component
+public class RequestCoalescer {
+
+    // 一次最多向上游预取的分块数，限制缓冲超过上限的幅度
+    private static final int MAX_UPSTREAM_PREFETCH = 16;
+
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+
+    private final LongAdder followers = new LongAdder();
+
+    private final LongAdder passThrough = new LongAdder();
+
+    // 每个合并拉取最多缓冲的响应体字节数（最快和最慢读者之间的差距）
+    @Value("${proxy.coalesce.max-buffer-size:8MB}")
+    private DataSize maxBufferSize;
+
+    /**
+     * 执行或加入一次上游拉取
+     *
+     * @param key   标准化后的上游路径
+     * @param fetch 真正的上游请求，返回 2xx 响应或 empty（未命中）
+     * @return 当前调用方独享的响应视图；未命中时为 empty
+     */
+    public Mono<SharedResponse> execute(String key, Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> fetch) {
+        return Mono.defer(() -> {
+            InFlight flight;
+            Reader reader;
+            boolean leader = false;
+            while (true) {
+                InFlight existing = inFlight.get(key);
+                if (existing != null) {
+                    reader = existing.tryJoin();
+                    if (reader != null) {
+                        flight = existing;
+                        break;
+                    }
+                }
+                InFlight created = new InFlight(key);
+                reader = created.tryJoin();
+                if (existing == null ? inFlight.putIfAbsent(key, created) == null : inFlight.replace(key, existing, created)) {
+                    flight = created;
+                    leader = true;
+                    break;
+                }
+            }
+            if (leader) {
+                leaders.increment();
+                flight.start(fetch.get());
+            } else {
+                followers.increment();
+            }
+            InFlight joined = flight;
+            Reader joinedReader = reader;
+            boolean isLeader = leader;
+            // 交出 SharedResponse 之后由它负责释放
+            AtomicBoolean delivered = new AtomicBoolean();
+            return joined.ready.asMono()
+                    .flatMap(found -> {
+                        if (!found) {
+                            joinedReader.finish();
+                            return Mono.<SharedResponse>empty();
+                        }
+                        delivered.set(true);
+                        return Mono.just(new SharedResponse(joined, joinedReader, isLeader));
+                    })
+                    .doOnCancel(() -> {
+                        if (!delivered.get()) {
+                            joinedReader.finish();
+                        }
+                    })
+                    .doOnError(e -> joinedReader.finish());
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight.size());
+        stats.put("leaders", leaders.sum());
+        stats.put("followers", followers.sum());
+        stats.put("passThrough", passThrough.sum());
+        stats.put("maxBufferBytes", maxBufferSize.toBytes());
+        return stats;
+    }
+
+    /**
+     * 某个调用方看到的共享响应，body 只能订阅一次；不订阅（HEAD、出错等）时必须调用 release，
+     * 订阅之后再调用 release 没有影响，可以放在写出结束后无条件调用
+     */
+    public static final class SharedResponse {
+
+        private final InFlight flight;
+
+        private final Reader reader;
+
+        private final boolean leader;
+
+        private final AtomicInteger consumed = new AtomicInteger();
+
+        SharedResponse(InFlight flight, Reader reader, boolean leader) {
+            this.flight = flight;
+            this.reader = reader;
+            this.leader = leader;
+        }
+
+        public HttpStatusCode getStatusCode() {
+            return flight.status;
+        }
+
+        public HttpHeaders getHeaders() {
+            return flight.headers;
+        }
+
+        /**
+         * 是否为真正发起上游请求的那一个
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        public Flux<DataBuffer> body(DataBufferFactory bufferFactory) {
+            return Flux.defer(() -> {
+                if (!consumed.compareAndSet(0, 1)) {
+                    return Flux.error(new IllegalStateException("响应体只能订阅一次"));
+                }
+                Flux<DataBuffer> exclusive = flight.claimExclusiveBody();
+                if (exclusive != null) {
+                    return exclusive.doFinally(signal -> reader.finish());
+                }
+                return Flux.create(sink -> {
+                    reader.attach(sink, bufferFactory);
+                    sink.onRequest(n -> reader.drain());
+                    sink.onDispose(reader::finish);
+                    reader.drain();
+                });
+            });
+        }
+
+        public void release() {
+            if (consumed.compareAndSet(0, 1)) {
+                reader.finish();
+            }
+        }
+    }
+
+    final class InFlight {
+
+        final String key;
+
+        final Sinks.One<Boolean> ready = Sinks.one();
+
+        volatile HttpStatusCode status;
+
+        volatile HttpHeaders headers;
+
+        // 还没被所有读者读完的分块，第一个的序号是 base
+        private final List<ByteBuf> chunks = new ArrayList<>();
+
+        private long base;
+
+        private long bufferedBytes;
+
+        private final List<Reader> readers = new ArrayList<>();
+
+        // 已经向上游请求、还没到达的分块数
+        private long outstanding;
+
+        // 共享模式下上游响应体的订阅，订阅建立后才赋值
+        private BodySubscriber body;
+
+        // 只有一个参与者时直接交给它的上游响应体
+        private Flux<DataBuffer> exclusiveBody;
+
+        private boolean exclusiveClaimed;
+
+        private boolean done;
+
+        private Throwable error;
+
+        // 不再接受新的参与者：开头分块已释放、进入直通模式或全部读者离开
+        private boolean closed;
+
+        // 全部读者离开
+        private boolean released;
+
+        // 上游请求和响应体的订阅，全部读者离开时一并取消（取消后再加入的会被立即取消）
+        private final Disposable.Composite upstream = Disposables.composite();
+
+        InFlight(String key) {
+            this.key = key;
+        }
+
+        synchronized Reader tryJoin() {
+            if (closed) {
+                return null;
+            }
+            Reader reader = new Reader(this);
+            readers.add(reader);
+            return reader;
+        }
+
+        void start(Mono<ResponseEntity<Flux<DataBuffer>>> fetch) {
+            upstream.add(fetch.subscribe(this::onResponse,
+                    e -> {
+                        ready.tryEmitError(e);
+                        finishUpstream(e);
+                    },
+                    () -> {
+                        if (ready.tryEmitValue(false).isSuccess()) {
+                            finishUpstream(null);
+                        }
+                    }));
+        }
+
+        private void onResponse(ResponseEntity<Flux<DataBuffer>> entity) {
+            status = entity.getStatusCode();
+            headers = entity.getHeaders();
+            Flux<DataBuffer> responseBody = entity.getBody() == null ? Flux.empty() : entity.getBody();
+            boolean abandoned;
+            boolean exclusive;
+            synchronized (this) {
+                abandoned = released;
+                exclusive = !abandoned && readers.size() == 1;
+                if (exclusive) {
+                    closed = true;
+                    exclusiveBody = responseBody;
+                }
+            }
+            if (abandoned) {
+                discard(responseBody);
+                return;
+            }
+            if (exclusive) {
+                // 只有一个参与者：不缓冲，之后到达的请求各自拉取
+                passThrough.increment();
+                inFlight.remove(key, this);
+            } else {
+                BodySubscriber subscriber = new BodySubscriber();
+                upstream.add(subscriber);
+                responseBody.subscribe(subscriber);
+            }
+            ready.tryEmitValue(true);
+        }
+
+        synchronized Flux<DataBuffer> claimExclusiveBody() {
+            if (exclusiveBody == null || exclusiveClaimed) {
+                return null;
+            }
+            exclusiveClaimed = true;
+            return exclusiveBody;
+        }
+
+        private void onChunk(DataBuffer buffer) {
+            ByteBuf chunk;
+            if (buffer instanceof NettyDataBuffer nettyBuffer) {
+                chunk = nettyBuffer.getNativeBuffer();
+            } else {
+                byte[] bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+                DataBufferUtils.release(buffer);
+                chunk = Unpooled.wrappedBuffer(bytes);
+            }
+            List<Reader> snapshot;
+            synchronized (this) {
+                if (outstanding > 0) {
+                    outstanding--;
+                }
+                if (released) {
+                    chunk.release();
+                    return;
+                }
+                chunks.add(chunk);
+                bufferedBytes += chunk.readableBytes();
+                snapshot = List.copyOf(readers);
+            }
+            snapshot.forEach(Reader::drain);
+            requestMore();
+        }
+
+        /**
+         * 按最快读者的需求向上游请求，缓冲达到上限时不再请求，等慢的读者读完释放
+         */
+        void requestMore() {
+            long n;
+            BodySubscriber subscriber;
+            synchronized (this) {
+                subscriber = body;
+                if (subscriber == null || done || released || bufferedBytes >= maxBufferSize.toBytes()) {
+                    return;
+                }
+                long received = base + chunks.size();
+                long wanted = received;
+                for (Reader reader : readers) {
+                    wanted = Math.max(wanted, reader.wantedUpTo());
+                }
+                n = Math.min(wanted - received - outstanding, MAX_UPSTREAM_PREFETCH - outstanding);
+                if (n <= 0) {
+                    return;
+                }
+                outstanding += n;
+            }
+            subscriber.request(n);
+        }
+
+        private void onError(Throwable e) {
+            finishUpstream(e);
+        }
+
+        private void onComplete() {
+            finishUpstream(null);
+        }
+
+        private void finishUpstream(Throwable e) {
+            List<Reader> snapshot;
+            synchronized (this) {
+                done = true;
+                error = e;
+                snapshot = List.copyOf(readers);
+            }
+            // 拉取结束即移出合并表，之后的请求走缓存或重新拉取
+            inFlight.remove(key, this);
+            snapshot.forEach(Reader::drain);
+        }
+
+        long received() {
+            return base + chunks.size();
+        }
+
+        ByteBuf chunkAt(long index) {
+            return chunks.get((int) (index - base));
+        }
+
+        /**
+         * 释放所有读者都已读过的分块，调用方持有锁
+         */
+        void trim() {
+            long min = Long.MAX_VALUE;
+            for (Reader reader : readers) {
+                min = Math.min(min, reader.index);
+            }
+            int count = (int) Math.min(chunks.size(), min - base);
+            if (count <= 0) {
+                return;
+            }
+            List<ByteBuf> consumed = chunks.subList(0, count);
+            for (ByteBuf chunk : consumed) {
+                bufferedBytes -= chunk.readableBytes();
+                chunk.release();
+            }
+            consumed.clear();
+            base += count;
+            // 开头已经释放，新来的请求拿不到完整响应体
+            closed = true;
+        }
+
+        void leave(Reader reader) {
+            boolean last;
+            boolean cancel = false;
+            List<ByteBuf> toRelease = List.of();
+            Flux<DataBuffer> unclaimed = null;
+            synchronized (this) {
+                if (!readers.remove(reader)) {
+                    return;
+                }
+                last = readers.isEmpty();
+                if (!last) {
+                    // 离开的可能是最慢的读者
+                    trim();
+                } else {
+                    released = true;
+                    closed = true;
+                    // 没人再读了，取消上游
+                    cancel = !done;
+                    toRelease = new ArrayList<>(chunks);
+                    chunks.clear();
+                    bufferedBytes = 0;
+                    if (exclusiveBody != null && !exclusiveClaimed) {
+                        unclaimed = exclusiveBody;
+                    }
+                }
+            }
+            if (!last) {
+                requestMore();
+                return;
+            }
+            inFlight.remove(key, this);
+            if (cancel) {
+                upstream.dispose();
+            }
+            toRelease.forEach(ByteBuf::release);
+            if (unclaimed != null) {
+                discard(unclaimed);
+            }
+        }
+
+        /**
+         * 没有人读的上游响应体：订阅后立即取消，连接不再复用
+         */
+        private void discard(Flux<DataBuffer> responseBody) {
+            responseBody.subscribe(DataBufferUtils::release).dispose();
+        }
+
+        /**
+         * 共享模式下读取上游响应体，不预取，由 requestMore 按读者需求请求
+         */
+        private final class BodySubscriber extends BaseSubscriber<DataBuffer> {
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                synchronized (InFlight.this) {
+                    body = this;
+                }
+                requestMore();
+            }
+
+            @Override
+            protected void hookOnNext(DataBuffer buffer) {
+                onChunk(buffer);
+            }
+
+            @Override
+            protected void hookOnError(Throwable throwable) {
+                onError(throwable);
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                onComplete();
+            }
+        }
+    }
+
+    /**
+     * 单个读者：按下游请求量从共享分块中逐块下发
+     */
+    static final class Reader {
+
+        private final InFlight flight;
+
+        private FluxSink<DataBuffer> sink;
+
+        private DataBufferFactory bufferFactory;
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        // 下一个要下发的分块序号，在 flight 锁内读写
+        private long index;
+
+        Reader(InFlight flight) {
+            this.flight = flight;
+        }
+
+        void attach(FluxSink<DataBuffer> sink, DataBufferFactory bufferFactory) {
+            synchronized (flight) {
+                this.sink = sink;
+                this.bufferFactory = bufferFactory;
+            }
+        }
+
+        /**
+         * 这个读者需要读到的分块序号（不含），调用方持有 flight 锁
+         */
+        long wantedUpTo() {
+            if (sink == null || finished.get()) {
+                return index;
+            }
+            long requested = sink.requestedFromDownstream();
+            return requested > Long.MAX_VALUE - index ? Long.MAX_VALUE : index + requested;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (true) {
+                    ByteBuf chunk = null;
+                    boolean completed = false;
+                    Throwable error = null;
+                    synchronized (flight) {
+                        if (sink == null || finished.get() || sink.isCancelled()) {
+                            break;
+                        }
+                        if (index < flight.received()) {
+                            if (sink.requestedFromDownstream() == 0) {
+                                break;
+                            }
+                            // 每个读者独立的读写索引，共享同一块内存
+                            chunk = flight.chunkAt(index).retainedDuplicate();
+                            index++;
+                            flight.trim();
+                        } else if (flight.done) {
+                            completed = true;
+                            error = flight.error;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (completed) {
+                        if (error != null) {
+                            sink.error(error);
+                        } else {
+                            sink.complete();
+                        }
+                        break;
+                    }
+                    sink.next(wrap(chunk));
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+            flight.requestMore();
+        }
+
+        private DataBuffer wrap(ByteBuf chunk) {
+            if (bufferFactory instanceof NettyDataBufferFactory nettyFactory) {
+                return nettyFactory.wrap(chunk);
+            }
+            byte[] bytes = new byte[chunk.readableBytes()];
+            chunk.readBytes(bytes);
+            chunk.release();
+            return bufferFactory.wrap(bytes);
+        }
+
+        void finish() {
+            if (finished.compareAndSet(false, true)) {
+                flight.leave(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.ewancle.downloadproxy.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.zip.CRC32C;
+
+/**
+ * 上传校验：数据写盘的同时增量计算 SHA-256 和 CRC32C（不再写完后重新读一遍），
+ * 和客户端可选的 X-Checksum-SHA256 / X-Checksum-CRC32C 请求头比较，不一致时拒绝；
+ * 校验值作为元数据保存在 uploads/.meta/{文件名}.properties
+ */
+@Service
+public class UploadChecksumService {
+
+    public static final String SHA256_HEADER = "X-Checksum-SHA256";
+
+    public static final String CRC32C_HEADER = "X-Checksum-CRC32C";
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path metaDir;
+
+    public UploadChecksumService(@Value("${files.storage.local.dir:uploads}") String localDir) {
+        this.metaDir = Paths.get(localDir).toAbsolutePath().normalize().resolve(".meta");
+    }
+
+    /**
+     * 开始一次计算
+     */
+    public Checksum begin() {
+        return new Checksum();
+    }
+
+    /**
+     * 和客户端提供的校验值比较，按顺序取第一个带校验头的来源（例如分片头、请求头）；都没有时不校验
+     *
+     * @throws ChecksumMismatchException 不一致
+     */
+    public void verify(Checksum checksum, HttpHeaders... sources) {
+        String sha256 = firstHeader(SHA256_HEADER, sources);
+        if (sha256 != null && !MessageDigest.isEqual(decode(sha256, 32), checksum.sha256())) {
+            throw new ChecksumMismatchException("SHA-256 校验失败，期望 " + sha256 + "，实际 " + checksum.sha256Hex());
+        }
+        verifyCrc32c(checksum.crc32c(), sources);
+    }
+
+    /**
+     * 只比较 CRC32C（分片上传合并时由各分片的 CRC32C 组合得到，不重新读文件）
+     */
+    public void verifyCrc32c(int crc32c, HttpHeaders... sources) {
+        String expected = firstHeader(CRC32C_HEADER, sources);
+        if (expected != null && ByteBuffer.wrap(decode(expected, 4)).getInt() != crc32c) {
+            throw new ChecksumMismatchException("CRC32C 校验失败，期望 " + expected + "，实际 " + crc32cHex(crc32c));
+        }
+    }
+
+    /**
+     * 保存文件的校验值元数据
+     */
+    public Mono<Void> saveMetadata(Path stored, long size, String sha256Hex, int crc32c) {
+        return Mono.<Void>fromCallable(() -> {
+                    Files.createDirectories(metaDir);
+                    Properties properties = new Properties();
+                    properties.setProperty("size", Long.toString(size));
+                    if (sha256Hex != null) {
+                        properties.setProperty("sha256", sha256Hex);
+                    }
+                    properties.setProperty("crc32c", crc32cHex(crc32c));
+                    try (OutputStream out = Files.newOutputStream(metaDir.resolve(stored.getFileName() + ".properties"))) {
+                        properties.store(out, null);
+                    }
+                    return null;
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public Mono<Void> saveMetadata(Path stored, Checksum checksum) {
+        return saveMetadata(stored, checksum.size(), checksum.sha256Hex(), checksum.crc32c());
+    }
+
+    /**
+     * 删除文件时一起删除元数据
+     */
+    public void deleteMetadata(String name) {
+        deleteQuietly(metaDir.resolve(name + ".properties"));
+    }
+
+    public static String crc32cHex(int crc32c) {
+        return HEX.toHexDigits(crc32c);
+    }
+
+    /**
+     * 组合两段数据的 CRC32C：crc(A + B) = combine(crc(A), crc(B), len(B))，
+     * 算法同 zlib crc32_combine（GF(2) 矩阵乘方），多项式换成 CRC32C 的 0x82F63B78
+     */
+    public static int combineCrc32c(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = 0x82F63B78;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static int gf2MatrixTimes(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * 删除校验失败的文件（忽略错误）
+     */
+    public static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String firstHeader(String name, HttpHeaders... sources) {
+        for (HttpHeaders headers : sources) {
+            String value = headers == null ? null : headers.getFirst(name);
+            if (value != null && !value.isBlank()) {
+                return value.trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 校验值支持十六进制或 Base64
+     */
+    private static byte[] decode(String value, int length) {
+        try {
+            if (value.length() == length * 2) {
+                return HEX.parseHex(value);
+            }
+            byte[] bytes = Base64.getDecoder().decode(value);
+            if (bytes.length == length) {
+                return bytes;
+            }
+        } catch (IllegalArgumentException ignored) {
+        }
+        throw new ChecksumMismatchException("校验值格式错误: " + value);
+    }
+
+    /**
+     * 一次上传（或一个分片）的增量校验值，不是线程安全的，按数据顺序调用
+     */
+    public static final class Checksum {
+
+        private final MessageDigest sha256;
+
+        private final CRC32C crc32c = new CRC32C();
+
+        private long size;
+
+        private byte[] sha256Result;
+
+        Checksum() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * 在数据流经时计算，不改变缓冲区的读位置
+         */
+        public Flux<DataBuffer> tap(Flux<DataBuffer> content) {
+            return content.doOnNext(this::update);
+        }
+
+        public void update(DataBuffer buffer) {
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer byteBuffer = iterator.next();
+                    size += byteBuffer.remaining();
+                    crc32c.update(byteBuffer.duplicate());
+                    sha256.update(byteBuffer);
+                }
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public byte[] sha256() {
+            if (sha256Result == null) {
+                sha256Result = sha256.digest();
+            }
+            return sha256Result;
+        }
+
+        public String sha256Hex() {
+            return HEX.formatHex(sha256());
+        }
+
+        public int crc32c() {
+            return (int) crc32c.getValue();
+        }
+    }
+
+    /**
+     * 校验值不一致或格式错误
+     */
+    public static class ChecksumMismatchException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package org.ewancle.downloadproxy.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.ewancle.downloadproxy.utils.MappedBufferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 可续传的分片上传会话：每个 fileId 一个很小的内存映射日志（uploads/.sessions/{fileId}.session），
+ * 记录分片参数和已收到分片的位图，重启后可以恢复；查询已上传分片只读位图，不列目录。
+ * 长时间没有新分片的会话由后台任务清理（日志和未完成的文件一起删除）。
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final int MAGIC = 0x55504C44; // "UPLD"
+
+    // 日志头：magic(4) total(4) chunkSize(8) lastChunkLength(8) createdAt(8) updatedAt(8)，
+    // 之后是位图（每片 1 bit）和各分片的 CRC32C（每片 4 字节）
+    private static final int HEADER_SIZE = 40;
+
+    private static final String SESSION_SUFFIX = ".session";
+
+    // 上传中的文件
+    private final Path partialDir;
+
+    private final Path sessionDir;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    // 多久没有新分片视为放弃
+    @Value("${files.upload.session-ttl:24h}")
+    private Duration sessionTtl;
+
+    @Value("${files.upload.gc-interval:10m}")
+    private Duration gcInterval;
+
+    // 分片上传的上限：文件按 total × chunkSize 预分配，日志按 total 映射，创建前先校验
+    @Value("${files.upload.max-file-size:10GB}")
+    private DataSize maxFileSize;
+
+    @Value("${files.upload.max-chunks:10000}")
+    private int maxChunks;
+
+    @Value("${files.upload.max-chunk-size:64MB}")
+    private DataSize maxChunkSize;
+
+    private Disposable gcTask;
+
+    public UploadSessionService(@Value("${files.storage.local.dir:uploads}") String localDir) {
+        Path rootLocation = Paths.get(localDir).toAbsolutePath().normalize();
+        this.partialDir = rootLocation.resolve(".partial");
+        this.sessionDir = rootLocation.resolve(".sessions");
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(partialDir);
+        Files.createDirectories(sessionDir);
+        gcTask = Flux.interval(gcInterval, gcInterval)
+                .onBackpressureDrop()
+                .concatMap(tick -> Mono.fromRunnable(this::collectExpired).subscribeOn(Schedulers.boundedElastic()))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (gcTask != null) {
+            gcTask.dispose();
+        }
+        sessions.values().forEach(UploadSession::close);
+    }
+
+    /**
+     * 打开或创建会话（阻塞 IO）；第一次创建时按 total × chunkSize 稀疏预分配目标文件
+     * 分片参数超过配置的上限时抛 IllegalArgumentException，不在磁盘上创建任何东西
+     */
+    public UploadSession open(String fileId, int total, long chunkSize) {
+        checkFileId(fileId);
+        if (total <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("total 和 chunkSize 必须大于 0");
+        }
+        if (total > maxChunks) {
+            throw new IllegalArgumentException("分片数超过上限 " + maxChunks + ": " + total);
+        }
+        if (chunkSize > maxChunkSize.toBytes()) {
+            throw new IllegalArgumentException("chunkSize 超过上限 " + maxChunkSize + ": " + chunkSize);
+        }
+        // 除法比较，避免 total × chunkSize 溢出
+        if (chunkSize > maxFileSize.toBytes() / total) {
+            throw new IllegalArgumentException("文件大小超过上限 " + maxFileSize);
+        }
+        UploadSession session = sessions.computeIfAbsent(fileId, id -> {
+            UploadSession recovered = recover(id);
+            return recovered != null ? recovered : create(id, total, chunkSize);
+        });
+        if (session.total != total || session.chunkSize != chunkSize) {
+            throw new IllegalArgumentException("与已有上传的分片参数不一致: " + fileId);
+        }
+        return session;
+    }
+
+    /**
+     * 查找已有会话（阻塞 IO，内存中没有时从日志恢复），不存在返回 null
+     */
+    public UploadSession find(String fileId) {
+        checkFileId(fileId);
+        return sessions.computeIfAbsent(fileId, this::recover);
+    }
+
+    /**
+     * 结束会话：删除日志和残留的未完成文件
+     */
+    public void remove(UploadSession session) {
+        sessions.remove(session.fileId, session);
+        session.close();
+        try {
+            Files.deleteIfExists(session.journal);
+            Files.deleteIfExists(session.file);
+        } catch (IOException e) {
+            logger.warn("删除上传会话失败: {}", session.fileId, e);
+        }
+    }
+
+    private UploadSession create(String fileId, int total, long chunkSize) {
+        Path file = partialDir.resolve(fileId);
+        Path journal = sessionDir.resolve(fileId + SESSION_SUFFIX);
+        try {
+            // setLength 只扩展文件长度，不写数据，文件系统按稀疏文件处理
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                long expected = total * chunkSize;
+                if (raf.length() < expected) {
+                    raf.setLength(expected);
+                }
+            }
+            MappedByteBuffer buffer = map(journal, journalSize(total));
+            long now = System.currentTimeMillis();
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, total);
+            buffer.putLong(8, chunkSize);
+            buffer.putLong(16, -1);
+            buffer.putLong(24, now);
+            buffer.putLong(32, now);
+            return new UploadSession(fileId, file, journal, buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("创建上传会话失败: " + fileId, e);
+        }
+    }
+
+    private UploadSession recover(String fileId) {
+        Path journal = sessionDir.resolve(fileId + SESSION_SUFFIX);
+        if (!Files.exists(journal)) {
+            return null;
+        }
+        try {
+            long size = Files.size(journal);
+            if (size < HEADER_SIZE) {
+                throw new IOException("日志长度不足");
+            }
+            MappedByteBuffer buffer = map(journal, size);
+            int total = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || total <= 0 || size < journalSize(total)) {
+                MappedBufferUtils.unmap(buffer);
+                throw new IOException("日志格式错误");
+            }
+            return new UploadSession(fileId, partialDir.resolve(fileId), journal, buffer);
+        } catch (IOException e) {
+            logger.warn("上传会话日志损坏，丢弃: {} - {}", fileId, e.getMessage());
+            try {
+                Files.deleteIfExists(journal);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    private static long journalSize(int total) {
+        return HEADER_SIZE + (total + 7) / 8 + 4L * total;
+    }
+
+    private static MappedByteBuffer map(Path journal, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 映射在通道关闭后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void collectExpired() {
+        long deadline = System.currentTimeMillis() - sessionTtl.toMillis();
+        List<String> expired = new ArrayList<>();
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(sessionDir, "*" + SESSION_SUFFIX)) {
+            for (Path journal : journals) {
+                String name = journal.getFileName().toString();
+                String fileId = name.substring(0, name.length() - SESSION_SUFFIX.length());
+                UploadSession session = find(fileId);
+                if (session != null && session.updatedAt() < deadline) {
+                    expired.add(fileId);
+                    remove(session);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("清理上传会话失败", e);
+        }
+        // 没有会话日志的未完成文件（日志损坏或被删除），按修改时间清理
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(partialDir)) {
+            for (Path partial : partials) {
+                Path journal = sessionDir.resolve(partial.getFileName() + SESSION_SUFFIX);
+                if (!Files.exists(journal) && Files.getLastModifiedTime(partial).toMillis() < deadline) {
+                    expired.add(partial.getFileName().toString());
+                    Files.deleteIfExists(partial);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("清理未完成上传文件失败", e);
+        }
+        if (!expired.isEmpty()) {
+            logger.info("清理过期上传会话 {} 个: {}", expired.size(), expired);
+        }
+    }
+
+    private static void checkFileId(String fileId) {
+        if (fileId == null || fileId.isEmpty() || fileId.contains("/") || fileId.contains("\\") || fileId.contains("..")) {
+            throw new IllegalArgumentException("非法 fileId: " + fileId);
+        }
+    }
+
+    /**
+     * 一个上传会话：分片参数和已收到分片的位图都直接读写映射内存
+     */
+    public static final class UploadSession {
+
+        final String fileId;
+
+        // 上传中的目标文件
+        final Path file;
+
+        final Path journal;
+
+        final int total;
+
+        final long chunkSize;
+
+        private final MappedByteBuffer buffer;
+
+        private boolean closed;
+
+        UploadSession(String fileId, Path file, Path journal, MappedByteBuffer buffer) {
+            this.fileId = fileId;
+            this.file = file;
+            this.journal = journal;
+            this.buffer = buffer;
+            this.total = buffer.getInt(4);
+            this.chunkSize = buffer.getLong(8);
+        }
+
+        public String fileId() {
+            return fileId;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public int total() {
+            return total;
+        }
+
+        public long chunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * 记录一个分片写入完成；除最后一片外每片必须正好 chunkSize 字节
+         */
+        public synchronized void markReceived(int index, long length, int crc32c) {
+            if (index < total - 1 && length != chunkSize) {
+                throw new IllegalArgumentException("分片大小不等于 chunkSize: chunk-" + index + " = " + length);
+            }
+            checkOpen();
+            if (index == total - 1) {
+                buffer.putLong(16, length);
+            }
+            buffer.putInt(crcOffset(index), crc32c);
+            int position = HEADER_SIZE + index / 8;
+            buffer.put(position, (byte) (buffer.get(position) | (1 << (index % 8))));
+            buffer.putLong(32, System.currentTimeMillis());
+        }
+
+        public synchronized boolean isReceived(int index) {
+            checkOpen();
+            return (buffer.get(HEADER_SIZE + index / 8) & (1 << (index % 8))) != 0;
+        }
+
+        /**
+         * 已收到的分片序号，升序
+         */
+        public synchronized List<Integer> receivedChunks() {
+            List<Integer> result = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                if (isReceived(i)) {
+                    result.add(i);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 第一个缺少的分片序号，全部到齐返回 -1
+         */
+        public synchronized int firstMissing() {
+            for (int i = 0; i < total; i++) {
+                if (!isReceived(i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 最后一片的实际长度，还没收到时为 -1
+         */
+        public synchronized long lastChunkLength() {
+            checkOpen();
+            return buffer.getLong(16);
+        }
+
+        /**
+         * 由各分片的 CRC32C 按顺序组合出整个文件的 CRC32C，不需要读文件；要求分片已经到齐
+         */
+        public synchronized int fileCrc32c() {
+            checkOpen();
+            int crc = buffer.getInt(crcOffset(0));
+            for (int i = 1; i < total; i++) {
+                long length = i == total - 1 ? buffer.getLong(16) : chunkSize;
+                crc = UploadChecksumService.combineCrc32c(crc, buffer.getInt(crcOffset(i)), length);
+            }
+            return crc;
+        }
+
+        private int crcOffset(int index) {
+            return HEADER_SIZE + (total + 7) / 8 + 4 * index;
+        }
+
+        public synchronized long updatedAt() {
+            checkOpen();
+            return buffer.getLong(32);
+        }
+
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                MappedBufferUtils.unmap(buffer);
+            }
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("上传会话已结束: " + fileId);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.ewancle.downloadproxy.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 上传写盘：multipart 的小缓冲区先拷进一块大的直接内存，攒满再按块对齐的位置一次写出，减少系统调用；
+ * 写完按 files.upload.durability 决定何时落盘：
+ * none 交给操作系统回写；fsync 每个文件写完立即 fsync；
+ * group-commit 把一小段时间内完成的上传攒成一批并发 fsync（同一个文件只 fsync 一次），
+ * 文件系统日志可以把同一批合并成一次提交，等待时间有上限。
+ */
+@Service
+public class UploadWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadWriter.class);
+
+    // 复用的写缓冲区个数上限，超过时用完直接丢弃
+    private static final int POOL_SIZE = 64;
+
+    // 一次写出的块大小，也是写入位置的对齐单位
+    @Value("${files.upload.write-buffer-size:1MB}")
+    private DataSize writeBufferSize;
+
+    @Value("${files.upload.durability:none}")
+    private Durability durability;
+
+    @Value("${files.upload.group-commit-interval:10ms}")
+    private Duration groupCommitInterval;
+
+    private final Queue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // 等待下一次组提交的文件
+    private final Queue<PendingSync> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean groupCommitScheduled = new AtomicBoolean();
+
+    /**
+     * 写一个新文件（文件已存在时报错），按配置落盘后完成
+     */
+    public Mono<Void> write(Flux<DataBuffer> content, Path file) {
+        return write(content, file, 0, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 从 position 开始写入已存在的文件（分片上传），不截断
+     */
+    public Mono<Void> write(Flux<DataBuffer> content, Path file, long position) {
+        return write(content, file, position, StandardOpenOption.WRITE);
+    }
+
+    private Mono<Void> write(Flux<DataBuffer> content, Path file, long position, OpenOption... options) {
+        return Mono.usingWhen(
+                Mono.fromCallable(() -> new CoalescingWriter(FileChannel.open(file, options), position, acquireBuffer()))
+                        .subscribeOn(Schedulers.boundedElastic()),
+                writer -> content
+                        // 拷贝和写盘都在 boundedElastic 上，不阻塞 Netty 线程
+                        .publishOn(Schedulers.boundedElastic())
+                        // append 已经释放了缓冲区，不能再往下游传：then() 会把收到的元素交给丢弃钩子再释放一次
+                        .<Void>handle((buffer, sink) -> writer.append(buffer))
+                        .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                        .then(Mono.fromCallable(() -> {
+                            writer.flush();
+                            return writer.channel;
+                        }))
+                        .flatMap(this::sync),
+                writer -> Mono.fromRunnable(() -> close(writer, true)),
+                (writer, error) -> Mono.fromRunnable(() -> close(writer, true)),
+                // 取消时 append 可能还在另一个线程上使用缓冲区，不放回池里
+                writer -> Mono.fromRunnable(() -> close(writer, false)));
+    }
+
+    /**
+     * 按配置把通道的数据刷到磁盘；none 时立即完成
+     */
+    public Mono<Void> sync(FileChannel channel) {
+        return switch (durability) {
+            case NONE -> Mono.empty();
+            case FSYNC -> Mono.<Void>fromCallable(() -> {
+                        channel.force(false);
+                        return null;
+                    })
+                    .subscribeOn(Schedulers.boundedElastic());
+            case GROUP_COMMIT -> Mono.create(sink -> {
+                pending.add(new PendingSync(channel, sink));
+                if (groupCommitScheduled.compareAndSet(false, true)) {
+                    Schedulers.parallel().schedule(this::groupCommit, groupCommitInterval.toMillis(), TimeUnit.MILLISECONDS);
+                }
+            });
+        };
+    }
+
+    /**
+     * 刷新目录项（新建、重命名文件后），保证文件名本身也落盘；none 时立即完成
+     */
+    public Mono<Void> syncDirectory(Path directory) {
+        if (durability == Durability.NONE) {
+            return Mono.empty();
+        }
+        return Mono.usingWhen(
+                        Mono.fromCallable(() -> FileChannel.open(directory, StandardOpenOption.READ))
+                                .subscribeOn(Schedulers.boundedElastic()),
+                        this::sync,
+                        channel -> Mono.fromCallable(() -> {
+                            channel.close();
+                            return channel;
+                        }))
+                // 有的平台不能打开目录，只能放弃目录项的落盘
+                .onErrorResume(IOException.class, e -> {
+                    logger.debug("无法刷新目录: {}", directory, e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * 一批待落盘的文件并发 fsync，同一个通道只做一次
+     */
+    private void groupCommit() {
+        // 先清标志再取队列：之后到达的请求会安排下一批
+        groupCommitScheduled.set(false);
+        Map<FileChannel, List<MonoSink<Void>>> batch = new IdentityHashMap<>();
+        PendingSync next;
+        while ((next = pending.poll()) != null) {
+            batch.computeIfAbsent(next.channel(), channel -> new ArrayList<>()).add(next.sink());
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        Flux.fromIterable(batch.entrySet())
+                .flatMap(entry -> Mono.fromCallable(() -> {
+                            entry.getKey().force(false);
+                            return entry;
+                        })
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .doOnNext(done -> done.getValue().forEach(MonoSink::success))
+                        .onErrorResume(e -> {
+                            entry.getValue().forEach(sink -> sink.error(e));
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect((int) writeBufferSize.toBytes());
+    }
+
+    private void close(CoalescingWriter writer, boolean reuseBuffer) {
+        try {
+            writer.channel.close();
+        } catch (IOException e) {
+            logger.warn("关闭上传文件失败", e);
+        }
+        if (reuseBuffer) {
+            bufferPool.offer(writer.buffer);
+        }
+    }
+
+    /**
+     * 落盘策略
+     */
+    public enum Durability {
+        NONE, FSYNC, GROUP_COMMIT
+    }
+
+    private record PendingSync(FileChannel channel, MonoSink<Void> sink) {
+    }
+
+    /**
+     * 一次写入的状态：缓冲区攒满（或到达下一个对齐位置）时写出
+     */
+    private static final class CoalescingWriter {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer;
+
+        // 缓冲区第一个字节在文件中的位置
+        private long position;
+
+        CoalescingWriter(FileChannel channel, long position, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            alignLimit();
+        }
+
+        void append(DataBuffer dataBuffer) {
+            try (DataBuffer.ByteBufferIterator iterator = dataBuffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer source = iterator.next();
+                    while (source.hasRemaining()) {
+                        int length = Math.min(source.remaining(), buffer.remaining());
+                        buffer.put(buffer.position(), source, source.position(), length);
+                        buffer.position(buffer.position() + length);
+                        source.position(source.position() + length);
+                        if (!buffer.hasRemaining()) {
+                            flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                DataBufferUtils.release(dataBuffer);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+            alignLimit();
+        }
+
+        /**
+         * 起始位置不在块边界上时（分片不是缓冲区大小的整数倍），第一块只写到下一个边界，之后都对齐
+         */
+        private void alignLimit() {
+            int capacity = buffer.capacity();
+            buffer.limit(capacity - (int) (position % capacity));
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.ewancle.downloadproxy.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 上游主机选择器：后台定时探测 PROXY_HOSTS，维护每个主机的 EWMA 延迟和错误率，
+ * 连续失败时熔断。请求路径上只读取一个预先排好序的快照，O(1) 取得最优主机，不再每次请求 HEAD 全部主机。
+ */
+@Component
+public class UpstreamHostSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamHostSelector.class);
+
+    private static final List<String> DEFAULT_HOSTS = List.of(
+            "http://baidu.com:11250",
+            "http://google.com:11250",
+            "http://aliyun.com:11250"
+    );
+
+    private final WebClient webClientNoRedirect;
+
+    @Value("${proxy.upstream.probe-interval:5s}")
+    private Duration probeInterval;
+
+    @Value("${proxy.upstream.probe-timeout:3s}")
+    private Duration probeTimeout;
+
+    @Value("${proxy.upstream.probe-path:/}")
+    private String probePath;
+
+    // EWMA 平滑系数，越大越偏向最近的样本
+    @Value("${proxy.upstream.ewma-alpha:0.3}")
+    private double ewmaAlpha;
+
+    // 连续失败多少次熔断
+    @Value("${proxy.upstream.failure-threshold:3}")
+    private int failureThreshold;
+
+    // 熔断后多久进入半开，由下一次探测决定是否恢复
+    @Value("${proxy.upstream.open-duration:30s}")
+    private Duration openDuration;
+
+    // 对冲请求的延迟取最近 GET 响应头耗时的第几百分位
+    @Value("${proxy.hedge.percentile:95}")
+    private double hedgePercentile;
+
+    // 样本不足时使用的对冲延迟
+    @Value("${proxy.hedge.initial-delay:200ms}")
+    private Duration hedgeInitialDelay;
+
+    @Value("${proxy.hedge.min-delay:20ms}")
+    private Duration hedgeMinDelay;
+
+    @Value("${proxy.hedge.max-delay:2s}")
+    private Duration hedgeMaxDelay;
+
+    private static final int LATENCY_SAMPLES = 1024;
+
+    // 最近 GET 拿到响应头的耗时（纳秒），环形覆盖，在探测周期里统计百分位
+    private final AtomicLongArray latencySamples = new AtomicLongArray(LATENCY_SAMPLES);
+
+    private final AtomicLong latencySampleCount = new AtomicLong();
+
+    private volatile Duration hedgeDelay;
+
+    private final Map<String, HostHealth> healthByHost = new ConcurrentHashMap<>();
+
+    private List<HostHealth> hosts = List.of();
+
+    // 请求路径上读取的快照：健康主机按评分排序，熔断主机排在最后
+    private volatile List<String> ranked = List.of();
+
+    // 快照中未熔断的主机数
+    private volatile int usableCount;
+
+    private Disposable probeTask;
+
+    public UpstreamHostSelector(WebClient webClientNoRedirect) {
+        this.webClientNoRedirect = webClientNoRedirect;
+    }
+
+    @PostConstruct
+    public void init() {
+        String proxyHosts = System.getenv("PROXY_HOSTS");
+        logger.info("proxyHosts = {}", proxyHosts);
+        List<String> hostList = DEFAULT_HOSTS;
+        if (proxyHosts != null && !proxyHosts.isEmpty()) {
+            hostList = Arrays.stream(proxyHosts.split(",")).map(String::trim).filter(h -> !h.isEmpty()).toList();
+        }
+        List<HostHealth> list = new ArrayList<>();
+        for (int i = 0; i < hostList.size(); i++) {
+            HostHealth health = new HostHealth(hostList.get(i), i);
+            list.add(health);
+            healthByHost.put(health.host, health);
+        }
+        hosts = List.copyOf(list);
+        hedgeDelay = hedgeInitialDelay;
+        rerank();
+
+        probeTask = Flux.interval(Duration.ZERO, probeInterval, Schedulers.parallel())
+                .onBackpressureDrop()
+                .concatMap(tick -> Flux.fromIterable(hosts).flatMap(this::probe)
+                        .then(Mono.fromRunnable(() -> {
+                            rerank();
+                            updateHedgeDelay();
+                        })))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (probeTask != null) {
+            probeTask.dispose();
+        }
+    }
+
+    /**
+     * 当前可用主机，按评分从优到劣；全部熔断时仍返回全部主机（尽力而为）
+     */
+    public List<String> candidates() {
+        return ranked;
+    }
+
+    /**
+     * 当前最优主机
+     */
+    public String best() {
+        List<String> snapshot = ranked;
+        return snapshot.isEmpty() ? null : snapshot.get(0);
+    }
+
+    /**
+     * 未熔断的主机数
+     */
+    public int usableCount() {
+        return usableCount;
+    }
+
+    /**
+     * 对冲延迟：主请求超过这个时间还没拿到响应头，就向下一个主机补发一次
+     */
+    public Duration hedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * 记录一次 GET 拿到响应头的耗时，用于计算对冲延迟
+     */
+    public void recordFetchLatency(long latencyNanos) {
+        long index = latencySampleCount.getAndIncrement();
+        latencySamples.set((int) (index % LATENCY_SAMPLES), latencyNanos);
+    }
+
+    /**
+     * 记录一次成功（主机有响应，包括 3xx/4xx）；延迟变化在下一轮探测时重排，熔断状态变化立即重排
+     */
+    public void recordSuccess(String host, long latencyNanos) {
+        HostHealth health = healthByHost.get(host);
+        if (health != null && health.onSuccess(latencyNanos / 1_000_000.0, ewmaAlpha)) {
+            rerank();
+        }
+    }
+
+    /**
+     * 记录一次失败（连接错误、超时、5xx）
+     */
+    public void recordFailure(String host) {
+        HostHealth health = healthByHost.get(host);
+        if (health != null && health.onFailure(ewmaAlpha, failureThreshold, openDuration.toNanos())) {
+            rerank();
+        }
+    }
+
+    /**
+     * 各主机健康状况，用于监控
+     */
+    public List<Map<String, Object>> snapshot() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (HostHealth health : hosts) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("host", health.host);
+            item.put("state", health.state(System.nanoTime()).name());
+            item.put("ewmaLatencyMillis", health.ewmaLatencyMillis);
+            item.put("ewmaErrorRate", health.ewmaErrorRate);
+            item.put("consecutiveFailures", health.consecutiveFailures);
+            result.add(item);
+        }
+        return result;
+    }
+
+    private Mono<Void> probe(HostHealth health) {
+        long start = System.nanoTime();
+        return webClientNoRedirect.head()
+                .uri(health.host + probePath)
+                .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode()))
+                .timeout(probeTimeout)
+                .doOnNext(status -> {
+                    if (status.is5xxServerError()) {
+                        recordFailure(health.host);
+                    } else {
+                        recordSuccess(health.host, System.nanoTime() - start);
+                    }
+                })
+                .onErrorResume(e -> {
+                    logger.debug("探测上游失败: {} - {}", health.host, e.getMessage());
+                    recordFailure(health.host);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    // 主机数量很少，状态变化时整体重排即可，热路径只读快照
+    private synchronized void rerank() {
+        long now = System.nanoTime();
+        List<HostHealth> usable = new ArrayList<>();
+        List<HostHealth> open = new ArrayList<>();
+        for (HostHealth health : hosts) {
+            if (health.state(now) == CircuitState.OPEN) {
+                open.add(health);
+            } else {
+                usable.add(health);
+            }
+        }
+        Comparator<HostHealth> byScore = Comparator.comparingDouble(HostHealth::score)
+                .thenComparingInt(health -> health.order);
+        // 熔断的主机不参与转发，只有全部熔断时才退回到这些主机
+        List<HostHealth> selected = usable.isEmpty() ? open : usable;
+        selected.sort(byScore);
+        ranked = selected.stream().map(health -> health.host).toList();
+        usableCount = usable.size();
+    }
+
+    private void updateHedgeDelay() {
+        int count = (int) Math.min(latencySampleCount.get(), LATENCY_SAMPLES);
+        if (count < 20) {
+            return;
+        }
+        long[] samples = new long[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = latencySamples.get(i);
+        }
+        Arrays.sort(samples);
+        int rank = (int) Math.ceil(hedgePercentile / 100.0 * count) - 1;
+        long nanos = samples[Math.max(0, Math.min(count - 1, rank))];
+        nanos = Math.max(hedgeMinDelay.toNanos(), Math.min(hedgeMaxDelay.toNanos(), nanos));
+        hedgeDelay = Duration.ofNanos(nanos);
+    }
+
+    enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final class HostHealth {
+
+        final String host;
+
+        // PROXY_HOSTS 中的顺序，评分相同时保持配置顺序
+        final int order;
+
+        volatile double ewmaLatencyMillis;
+
+        volatile double ewmaErrorRate;
+
+        volatile int consecutiveFailures;
+
+        // 熔断截止时间（nanoTime），0 表示未熔断
+        volatile long openUntil;
+
+        private volatile boolean sampled;
+
+        HostHealth(String host, int order) {
+            this.host = host;
+            this.order = order;
+        }
+
+        // 延迟按错误率加权：错误率越高评分越差
+        double score() {
+            double latency = sampled ? ewmaLatencyMillis : 0;
+            return latency * (1 + 4 * ewmaErrorRate) + 1000 * ewmaErrorRate;
+        }
+
+        CircuitState state(long now) {
+            if (openUntil == 0) {
+                return CircuitState.CLOSED;
+            }
+            return now < openUntil ? CircuitState.OPEN : CircuitState.HALF_OPEN;
+        }
+
+        /**
+         * @return 熔断状态是否发生变化
+         */
+        synchronized boolean onSuccess(double latencyMillis, double alpha) {
+            ewmaLatencyMillis = sampled ? alpha * latencyMillis + (1 - alpha) * ewmaLatencyMillis : latencyMillis;
+            sampled = true;
+            ewmaErrorRate = (1 - alpha) * ewmaErrorRate;
+            consecutiveFailures = 0;
+            boolean changed = openUntil != 0;
+            openUntil = 0;
+            return changed;
+        }
+
+        /**
+         * @return 熔断状态是否发生变化
+         */
+        synchronized boolean onFailure(double alpha, int threshold, long openNanos) {
+            ewmaErrorRate = alpha + (1 - alpha) * ewmaErrorRate;
+            consecutiveFailures++;
+            long now = System.nanoTime();
+            // 半开状态下失败、或连续失败达到阈值，重新熔断
+            if (consecutiveFailures >= threshold || state(now) == CircuitState.HALF_OPEN) {
+                boolean changed = state(now) != CircuitState.OPEN;
+                if (changed) {
+                    logger.warn("上游熔断: {}，连续失败 {} 次", host, consecutiveFailures);
+                }
+                openUntil = now + openNanos;
+                return changed;
+            }
+            return false;
+        }
+    }
+}
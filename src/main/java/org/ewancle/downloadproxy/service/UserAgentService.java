@@ -0,0 +1,173 @@
+package org.ewancle.downloadproxy.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import nl.basjes.parse.useragent.UserAgent;
+import nl.basjes.parse.useragent.UserAgentAnalyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User-Agent 解析：整个进程共用一个 UserAgentAnalyzer，只解析用到的字段（设备类型、操作系统、客户端名称），
+ * 启动后在后台构建并用常见 UA 预热，不拖慢启动；构建完成前查询返回 null。
+ * 结果放在 Caffeine 缓存里（请求大多来自少数几种客户端），命中时不再解析；
+ * 未命中的 UA 交给专用的解析线程（解析一次要几毫秒，不能放在 Netty 线程上），这次请求先不带客户端信息；
+ * 解析队列有上限，大量不同的 UA 涌入时多出来的直接放弃，不占用其它任务的线程。
+ * 不再用 UserAgentAnalyzerUtils.userAgentAnalyzer()：它每次调用都新建分析器（几秒、几百 MB）。
+ */
+@Service
+public class UserAgentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserAgentService.class);
+
+    /**
+     * GlobalWebFilter 放进 ServerWebExchange 的客户端属性，值为 ClientAgent
+     */
+    public static final String CLIENT_ATTRIBUTE = UserAgentService.class.getName() + ".client";
+
+    private static final List<String> FIELDS = List.of(
+            UserAgent.DEVICE_CLASS, UserAgent.OPERATING_SYSTEM_NAME, UserAgent.AGENT_NAME);
+
+    // 预热用的常见 UA：浏览器、移动端、爬虫和下载工具
+    private static final List<String> WARMUP_USER_AGENTS = List.of(
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36 Edg/124.0.0.0",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:125.0) Gecko/20100101 Firefox/125.0",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.4 Safari/605.1.15",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 17_4 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.4 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (iPad; CPU OS 17_4 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.4 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Mobile Safari/537.36",
+            "Mozilla/5.0 (Linux; Android 13; SM-X700) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36",
+            "Mozilla/5.0 (Linux; Android 12; M2012K11AC Build/SKQ1.211006.001; wv) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/116.0.0.0 Mobile Safari/537.36 MicroMessenger/8.0.47",
+            "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+            "Mozilla/5.0 (compatible; Baiduspider/2.0; +http://www.baidu.com/search/spider.html)",
+            "curl/8.5.0",
+            "Wget/1.21.4",
+            "okhttp/4.12.0",
+            "python-requests/2.31.0",
+            "Java-http-client/21.0.1");
+
+    // 缓存的不同 UA 个数上限
+    @Value("${ua.cache.max-entries:10000}")
+    private long cacheMaxEntries;
+
+    // 解析线程数
+    @Value("${ua.parse-threads:2}")
+    private int parseThreads;
+
+    // 等待解析的 UA 个数上限
+    @Value("${ua.parse-queue-size:1024}")
+    private int parseQueueSize;
+
+    // 超过这个长度的 UA 只解析前面这部分
+    @Value("${ua.max-length:2048}")
+    private int maxLength;
+
+    private volatile UserAgentAnalyzer analyzer;
+
+    private AsyncCache<String, ClientAgent> cache;
+
+    private ThreadPoolExecutor parseExecutor;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder().maximumSize(cacheMaxEntries).buildAsync();
+        parseExecutor = new ThreadPoolExecutor(parseThreads, parseThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parseQueueSize), Thread.ofPlatform().daemon().name("ua-parser-", 0).factory());
+        // 构建分析器要加载规则（几秒），放到后台，不阻塞启动
+        Mono.fromRunnable(this::build)
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(null, e -> logger.warn("UserAgentAnalyzer 构建失败，不解析 User-Agent", e));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        parseExecutor.shutdownNow();
+    }
+
+    /**
+     * 取已解析的 User-Agent，不阻塞：没解析过的 UA 提交后台解析并返回 null，
+     * UA 为空或分析器还没准备好时也返回 null
+     */
+    public ClientAgent analyze(String userAgent) {
+        UserAgentAnalyzer current = analyzer;
+        if (current == null || userAgent == null || userAgent.isEmpty()) {
+            return null;
+        }
+        CompletableFuture<ClientAgent> parsed = cache.getIfPresent(userAgent);
+        if (parsed != null) {
+            return resultOf(parsed);
+        }
+        if (parseExecutor.getQueue().remainingCapacity() == 0) {
+            // 解析队列已满，这个 UA 下次再解析
+            return null;
+        }
+        try {
+            // 同一个 UA 并发未命中只提交一次
+            return resultOf(cache.get(userAgent,
+                    (ua, executor) -> CompletableFuture.supplyAsync(() -> parse(current, ua), parseExecutor)));
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 解析完成的结果；还在解析或解析失败时返回 null（失败的条目 Caffeine 会自动移除）
+     */
+    private static ClientAgent resultOf(CompletableFuture<ClientAgent> parsed) {
+        return parsed.isDone() && !parsed.isCompletedExceptionally() ? parsed.join() : null;
+    }
+
+    public boolean isReady() {
+        return analyzer != null;
+    }
+
+    private void build() {
+        long start = System.currentTimeMillis();
+        UserAgentAnalyzer built = UserAgentAnalyzer.newBuilder()
+                .withFields(FIELDS)
+                // 缓存由 Caffeine 负责，规则里的测试用例也不需要
+                .withoutCache()
+                .dropTests()
+                .withUserAgentMaxLength(maxLength)
+                .hideMatcherLoadStats()
+                .immediateInitialization()
+                .build();
+        // 预热：触发 JIT 编译，常见 UA 直接进缓存
+        WARMUP_USER_AGENTS.forEach(ua -> cache.put(ua, CompletableFuture.completedFuture(parse(built, ua))));
+        analyzer = built;
+        logger.info("UserAgentAnalyzer 就绪，字段 {}，耗时 {} ms", FIELDS, System.currentTimeMillis() - start);
+    }
+
+    private static ClientAgent parse(UserAgentAnalyzer analyzer, String userAgent) {
+        UserAgent parsed = analyzer.parse(userAgent);
+        return new ClientAgent(parsed.getValue(UserAgent.DEVICE_CLASS),
+                parsed.getValue(UserAgent.OPERATING_SYSTEM_NAME),
+                parsed.getValue(UserAgent.AGENT_NAME));
+    }
+
+    /**
+     * 解析出的客户端信息
+     */
+    public record ClientAgent(String deviceClass, String operatingSystem, String agentName) {
+
+        private static final List<String> MOBILE_DEVICE_CLASSES = List.of("Mobile", "Tablet", "Phone");
+
+        public boolean isMobile() {
+            return MOBILE_DEVICE_CLASSES.contains(deviceClass);
+        }
+    }
+}
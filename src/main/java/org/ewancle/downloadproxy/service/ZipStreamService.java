@@ -0,0 +1,315 @@
+package org.ewancle.downloadproxy.service;
+
+import org.ewancle.downloadproxy.storage.StorageBackend;
+import org.ewancle.downloadproxy.storage.StoredObject;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 流式 ZIP：边读文件边写进响应，不在磁盘或内存里生成整个压缩包。
+ * 文件按顺序读取，客户端读得慢时文件读取也跟着慢（背压）；
+ * 已经压缩过的媒体（图片、音视频、压缩包）用 STORED，其它用 DEFLATE。
+ * 大小和 CRC 写在每个条目后面的数据描述符里（标志位 3），超过 4GB 时使用 ZIP64。
+ */
+@Service
+public class ZipStreamService {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int ZIP64_END = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    private static final int END = 0x06054b50;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    // 数据描述符 + 文件名 UTF-8
+    private static final int FLAGS = 0x0808;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private static final int OUTPUT_SIZE = 64 * 1024;
+
+    // 已经压缩过、再 DEFLATE 也省不了多少的类型
+    private static final Set<String> COMPRESSED_SUBTYPES = Set.of("zip", "gzip", "x-gzip", "x-7z-compressed",
+            "x-rar-compressed", "vnd.rar", "x-bzip2", "x-xz", "zstd", "x-zip-compressed");
+
+    private final StorageBackend storageBackend;
+
+    public ZipStreamService(StorageBackend storageBackend) {
+        this.storageBackend = storageBackend;
+    }
+
+    /**
+     * 生成压缩包内容；每个文件在轮到它时才打开读取
+     */
+    public Flux<DataBuffer> zip(List<StoredObject> files, DataBufferFactory bufferFactory) {
+        return Flux.defer(() -> {
+                    ZipState state = new ZipState();
+                    return Flux.fromIterable(files)
+                            // 上一个文件写完才开始下一个，条目位置在这时才确定
+                            .concatMap(file -> Flux.defer(() -> entry(file, state, bufferFactory)), 0)
+                            .concatWith(Mono.fromSupplier(() -> state.emit(bufferFactory.wrap(centralDirectory(state)))));
+                })
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    private Flux<DataBuffer> entry(StoredObject file, ZipState state, DataBufferFactory bufferFactory) {
+        Entry entry = new Entry(file.name().getBytes(StandardCharsets.UTF_8), isCompressed(file.mediaType()) ? STORED : DEFLATED,
+                dosTime(file.lastModified()), file.size() >= ZIP64_LIMIT - OUTPUT_SIZE, state.position);
+        state.entries.add(entry);
+
+        Flux<DataBuffer> content = storageBackend.get(file.name(), 0, file.size(), bufferFactory)
+                .doOnNext(entry::update);
+        Flux<DataBuffer> data = entry.method == STORED ? content
+                : Flux.using(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                        deflater -> deflate(content, deflater, bufferFactory),
+                        Deflater::end);
+
+        return Flux.concat(
+                Mono.fromSupplier(() -> state.emit(bufferFactory.wrap(localHeader(entry)))),
+                data.doOnNext(buffer -> entry.compressedSize += state.emit(buffer).readableByteCount()),
+                Mono.fromSupplier(() -> state.emit(bufferFactory.wrap(dataDescriptor(entry)))));
+    }
+
+    /**
+     * 输入缓冲区压缩完立即释放，输出写进新分配的缓冲区
+     */
+    private static Flux<DataBuffer> deflate(Flux<DataBuffer> content, Deflater deflater, DataBufferFactory bufferFactory) {
+        return content
+                .concatMapIterable(buffer -> {
+                    List<DataBuffer> output = new ArrayList<>();
+                    try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                        while (iterator.hasNext()) {
+                            deflater.setInput(iterator.next());
+                            while (!deflater.needsInput()) {
+                                drain(deflater, bufferFactory, output);
+                            }
+                        }
+                    } finally {
+                        DataBufferUtils.release(buffer);
+                    }
+                    return output;
+                })
+                .concatWith(Flux.defer(() -> {
+                    List<DataBuffer> output = new ArrayList<>();
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        drain(deflater, bufferFactory, output);
+                    }
+                    return Flux.fromIterable(output);
+                }));
+    }
+
+    private static void drain(Deflater deflater, DataBufferFactory bufferFactory, List<DataBuffer> output) {
+        DataBuffer out = bufferFactory.allocateBuffer(OUTPUT_SIZE);
+        int written;
+        try (DataBuffer.ByteBufferIterator iterator = out.writableByteBuffers()) {
+            written = deflater.deflate(iterator.next());
+        }
+        out.writePosition(out.writePosition() + written);
+        if (written > 0) {
+            output.add(out);
+        } else {
+            DataBufferUtils.release(out);
+        }
+    }
+
+    private static boolean isCompressed(MediaType mediaType) {
+        String type = mediaType.getType();
+        String subtype = mediaType.getSubtype();
+        if (type.equals("image")) {
+            return !subtype.equals("svg+xml") && !subtype.equals("bmp") && !subtype.equals("tiff");
+        }
+        return type.equals("video") || type.equals("audio") || COMPRESSED_SUBTYPES.contains(subtype);
+    }
+
+    private static byte[] localHeader(Entry entry) {
+        ByteBuffer header = buffer(30 + entry.name.length + (entry.zip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER)
+                .putShort((short) (entry.zip64 ? 45 : 20))
+                .putShort((short) FLAGS)
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                // CRC 和大小在数据描述符里
+                .putInt(0)
+                .putInt(entry.zip64 ? -1 : 0)
+                .putInt(entry.zip64 ? -1 : 0)
+                .putShort((short) entry.name.length)
+                .putShort((short) (entry.zip64 ? 20 : 0))
+                .put(entry.name);
+        if (entry.zip64) {
+            header.putShort((short) 1).putShort((short) 16).putLong(0).putLong(0);
+        }
+        return header.array();
+    }
+
+    private static byte[] dataDescriptor(Entry entry) {
+        ByteBuffer descriptor = buffer(entry.zip64 ? 24 : 16);
+        descriptor.putInt(DATA_DESCRIPTOR).putInt((int) entry.crc.getValue());
+        if (entry.zip64) {
+            descriptor.putLong(entry.compressedSize).putLong(entry.size);
+        } else {
+            descriptor.putInt((int) entry.compressedSize).putInt((int) entry.size);
+        }
+        return descriptor.array();
+    }
+
+    private static byte[] centralDirectory(ZipState state) {
+        List<byte[]> headers = new ArrayList<>(state.entries.size());
+        long directorySize = 0;
+        for (Entry entry : state.entries) {
+            boolean bigSize = entry.size >= ZIP64_LIMIT;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_LIMIT;
+            boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            ByteBuffer header = buffer(46 + entry.name.length + (extraLength > 0 ? 4 + extraLength : 0));
+            header.putInt(CENTRAL_HEADER)
+                    .putShort((short) 45)
+                    .putShort((short) (entry.zip64 || extraLength > 0 ? 45 : 20))
+                    .putShort((short) FLAGS)
+                    .putShort((short) entry.method)
+                    .putInt(entry.dosTime)
+                    .putInt((int) entry.crc.getValue())
+                    .putInt(bigCompressed ? -1 : (int) entry.compressedSize)
+                    .putInt(bigSize ? -1 : (int) entry.size)
+                    .putShort((short) entry.name.length)
+                    .putShort((short) (extraLength > 0 ? 4 + extraLength : 0))
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt(bigOffset ? -1 : (int) entry.offset)
+                    .put(entry.name);
+            if (extraLength > 0) {
+                // ZIP64 扩展字段只放超出 32 位的那几项，顺序固定
+                header.putShort((short) 1).putShort((short) extraLength);
+                if (bigSize) {
+                    header.putLong(entry.size);
+                }
+                if (bigCompressed) {
+                    header.putLong(entry.compressedSize);
+                }
+                if (bigOffset) {
+                    header.putLong(entry.offset);
+                }
+            }
+            headers.add(header.array());
+            directorySize += header.capacity();
+        }
+
+        long directoryOffset = state.position;
+        int count = state.entries.size();
+        boolean zip64 = count >= 0xFFFF || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+        ByteBuffer out = buffer((int) directorySize + (zip64 ? 56 + 20 : 0) + 22);
+        headers.forEach(out::put);
+        if (zip64) {
+            long zip64EndOffset = directoryOffset + directorySize;
+            out.putInt(ZIP64_END).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                    .putLong(count).putLong(count).putLong(directorySize).putLong(directoryOffset);
+            out.putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64EndOffset).putInt(1);
+        }
+        out.putInt(END)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, 0xFFFF))
+                .putShort((short) Math.min(count, 0xFFFF))
+                .putInt(zip64 ? -1 : (int) directorySize)
+                .putInt(zip64 ? -1 : (int) directoryOffset)
+                .putShort((short) 0);
+        return out.array();
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * MS-DOS 日期时间（本地时区，1980 年以前按 1980 年）
+     */
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * 一次压缩包输出的状态：已写出的字节数和各条目的信息（写中央目录用）
+     */
+    private static final class ZipState {
+
+        private final List<Entry> entries = new ArrayList<>();
+
+        private long position;
+
+        DataBuffer emit(DataBuffer buffer) {
+            position += buffer.readableByteCount();
+            return buffer;
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] name;
+
+        private final int method;
+
+        private final int dosTime;
+
+        private final boolean zip64;
+
+        // 本地文件头的位置
+        private final long offset;
+
+        private final CRC32 crc = new CRC32();
+
+        private long size;
+
+        private long compressedSize;
+
+        Entry(byte[] name, int method, int dosTime, boolean zip64, long offset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.zip64 = zip64;
+            this.offset = offset;
+        }
+
+        void update(DataBuffer buffer) {
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer byteBuffer = iterator.next();
+                    size += byteBuffer.remaining();
+                    crc.update(byteBuffer);
+                }
+            }
+        }
+    }
+}
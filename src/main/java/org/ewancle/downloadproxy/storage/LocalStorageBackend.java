@@ -0,0 +1,129 @@
+package org.ewancle.downloadproxy.storage;
+
+import org.ewancle.downloadproxy.service.BlobStoreService;
+import org.ewancle.downloadproxy.service.FileMetadataIndex;
+import org.ewancle.downloadproxy.service.FileMetadataIndex.FileMetadata;
+import org.ewancle.downloadproxy.service.FileRangeService;
+import org.ewancle.downloadproxy.service.UploadChecksumService;
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.ewancle.downloadproxy.service.UploadWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 本地目录存储（默认）：上传内容进内容寻址存储（按 SHA-256 去重），
+ * 目录下的普通文件（分片上传合并结果、直接放进来的文件）也能读取；元数据都查内存索引
+ */
+@Component
+@ConditionalOnProperty(name = "files.storage.type", havingValue = "local", matchIfMissing = true)
+public class LocalStorageBackend implements StorageBackend {
+
+    private final Path rootLocation;
+
+    private final BlobStoreService blobStoreService;
+
+    private final FileMetadataIndex fileMetadataIndex;
+
+    private final FileRangeService fileRangeService;
+
+    private final UploadChecksumService uploadChecksumService;
+
+    private final UploadWriter uploadWriter;
+
+    public LocalStorageBackend(BlobStoreService blobStoreService, FileMetadataIndex fileMetadataIndex,
+                               FileRangeService fileRangeService, UploadChecksumService uploadChecksumService,
+                               UploadWriter uploadWriter, @Value("${files.storage.local.dir:uploads}") String localDir) {
+        this.rootLocation = Paths.get(localDir).toAbsolutePath().normalize();
+        this.blobStoreService = blobStoreService;
+        this.fileMetadataIndex = fileMetadataIndex;
+        this.fileRangeService = fileRangeService;
+        this.uploadChecksumService = uploadChecksumService;
+        this.uploadWriter = uploadWriter;
+    }
+
+    /**
+     * 先写临时文件，写完按摘要提交到内容存储（内容已存在时只加引用）
+     */
+    @Override
+    public Mono<StoredObject> put(String name, Flux<DataBuffer> content, Checksum checksum) {
+        Path staged = blobStoreService.stagingFile();
+        return uploadWriter.write(checksum.tap(content), staged)
+                .then(Mono.defer(() -> blobStoreService.commitAsync(staged, name, checksum.sha256Hex(), checksum.size())))
+                .then(Mono.defer(() -> uploadChecksumService.saveMetadata(rootLocation.resolve(name), checksum)))
+                .then(Mono.fromSupplier(() -> toStoredObject(fileMetadataIndex.get(name))))
+                .onErrorResume(e -> Mono.fromRunnable(() -> UploadChecksumService.deleteQuietly(staged))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .then(Mono.error(e)));
+    }
+
+    /**
+     * 上传目录里的文件直接登记，不复制
+     */
+    @Override
+    public Mono<StoredObject> putFile(String name, Path file, Checksum checksum) {
+        if (!rootLocation.equals(file.getParent()) || !file.getFileName().toString().equals(name)) {
+            return StorageBackend.super.putFile(name, file, checksum);
+        }
+        return fileMetadataIndex.refresh(file).map(LocalStorageBackend::toStoredObject);
+    }
+
+    @Override
+    public Flux<DataBuffer> get(String name, long position, long count, DataBufferFactory bufferFactory) {
+        FileMetadata metadata = fileMetadataIndex.get(name);
+        if (metadata == null) {
+            return Flux.error(new NoSuchFileException(name));
+        }
+        return fileRangeService.read(metadata.path(), position, count, bufferFactory);
+    }
+
+    @Override
+    public Mono<StoredObject> stat(String name) {
+        return Mono.justOrEmpty(fileMetadataIndex.get(name)).map(LocalStorageBackend::toStoredObject);
+    }
+
+    @Override
+    public Flux<StoredObject> list(String prefix, String startAfter, int limit) {
+        return Flux.fromIterable(fileMetadataIndex.list(prefix, startAfter, limit))
+                .map(LocalStorageBackend::toStoredObject);
+    }
+
+    /**
+     * 内容存储里的文件只删除引用，最后一个引用删除时才删除内容；普通文件直接删除
+     */
+    @Override
+    public Mono<Boolean> delete(String name) {
+        if (name.startsWith(".")) {
+            return Mono.just(false);
+        }
+        Path file = rootLocation.resolve(name).normalize();
+        return Mono.fromCallable(() -> {
+                    boolean deleted = blobStoreService.delete(name);
+                    if (!deleted) {
+                        deleted = rootLocation.equals(file.getParent()) && Files.isRegularFile(file) && Files.deleteIfExists(file);
+                    }
+                    if (deleted) {
+                        uploadChecksumService.deleteMetadata(name);
+                    }
+                    return deleted;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                // 普通文件不等监听事件，立即从索引移除
+                .flatMap(deleted -> deleted ? fileMetadataIndex.refresh(file).thenReturn(true) : Mono.just(false));
+    }
+
+    private static StoredObject toStoredObject(FileMetadata metadata) {
+        return new StoredObject(metadata.name(), metadata.size(), metadata.lastModified(), metadata.mediaType(),
+                metadata.etag(), metadata.path());
+    }
+}
@@ -0,0 +1,336 @@
+package org.ewancle.downloadproxy.storage;
+
+import org.ewancle.downloadproxy.service.UploadChecksumService;
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * S3 兼容对象存储（MinIO、AWS S3 等），路径风格访问（endpoint/bucket/key），请求用 SigV4 签名。
+ * 上传先落临时文件：S3 单次 PUT 需要 Content-Length，签名也要用内容的 SHA-256。
+ */
+@Component
+@ConditionalOnProperty(name = "files.storage.type", havingValue = "s3")
+public class S3StorageBackend implements StorageBackend {
+
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final String CONTENT_SHA256_HEADER = "x-amz-content-sha256";
+
+    private static final String DATE_HEADER = "x-amz-date";
+
+    // S3 单页最多返回 1000 个
+    private static final int MAX_KEYS = 1000;
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final WebClient webClient;
+
+    private final String bucketUrl;
+
+    public S3StorageBackend(WebClient.Builder webClientBuilder,
+                            @Value("${files.storage.s3.endpoint}") String endpoint,
+                            @Value("${files.storage.s3.region:us-east-1}") String region,
+                            @Value("${files.storage.s3.bucket}") String bucket,
+                            @Value("${files.storage.s3.access-key}") String accessKey,
+                            @Value("${files.storage.s3.secret-key}") String secretKey) {
+        this.bucketUrl = endpoint.replaceAll("/+$", "") + "/" + encode(bucket);
+        this.webClient = webClientBuilder
+                .filter(new SigV4Signer(region, accessKey, secretKey))
+                .build();
+    }
+
+    @Override
+    public Mono<StoredObject> put(String name, Flux<DataBuffer> content, Checksum checksum) {
+        return Mono.fromCallable(() -> Files.createTempFile("s3-put-", ".tmp"))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(spool -> DataBufferUtils.write(checksum.tap(content), spool)
+                        .then(Mono.defer(() -> webClient.put()
+                                .uri(objectUri(name))
+                                .contentType(StoredObject.mediaTypeOf(name))
+                                .contentLength(checksum.size())
+                                .header(CONTENT_SHA256_HEADER, checksum.sha256Hex())
+                                .body(DataBufferUtils.read(spool, DefaultDataBufferFactory.sharedInstance, 64 * 1024), DataBuffer.class)
+                                .retrieve()
+                                .toBodilessEntity()))
+                        .map(response -> new StoredObject(name, checksum.size(), System.currentTimeMillis(),
+                                etagOf(response.getHeaders(), checksum.sha256Hex())))
+                        .doFinally(signal -> UploadChecksumService.deleteQuietly(spool)));
+    }
+
+    @Override
+    public Flux<DataBuffer> get(String name, long position, long count, DataBufferFactory bufferFactory) {
+        if (count <= 0) {
+            return Flux.empty();
+        }
+        return webClient.get()
+                .uri(objectUri(name))
+                .header(HttpHeaders.RANGE, "bytes=" + position + "-" + (position + count - 1))
+                .retrieve()
+                .bodyToFlux(DataBuffer.class)
+                .onErrorMap(WebClientResponseException.NotFound.class, e -> new NoSuchFileException(name));
+    }
+
+    @Override
+    public Mono<StoredObject> stat(String name) {
+        return webClient.head()
+                .uri(objectUri(name))
+                .exchangeToMono(response -> {
+                    if (response.statusCode().value() == HttpStatus.NOT_FOUND.value()) {
+                        return Mono.empty();
+                    }
+                    if (!response.statusCode().is2xxSuccessful()) {
+                        return response.createError();
+                    }
+                    HttpHeaders headers = response.headers().asHttpHeaders();
+                    MediaType mediaType = headers.getContentType() != null ? headers.getContentType() : StoredObject.mediaTypeOf(name);
+                    return Mono.just(new StoredObject(name, headers.getContentLength(), headers.getLastModified(),
+                            mediaType, headers.getETag(), null));
+                });
+    }
+
+    /**
+     * ListObjectsV2，超过一页时按 continuation-token 继续取
+     */
+    @Override
+    public Flux<StoredObject> list(String prefix, String startAfter, int limit) {
+        return listPage(prefix, startAfter, null, limit)
+                .expand(page -> page.nextToken() == null ? Mono.empty() : listPage(prefix, startAfter, page.nextToken(), limit))
+                .concatMapIterable(ListPage::objects)
+                .take(limit, true);
+    }
+
+    /**
+     * S3 删除不存在的对象也返回 204，先 HEAD 判断是否存在
+     */
+    @Override
+    public Mono<Boolean> delete(String name) {
+        return stat(name)
+                .flatMap(stored -> webClient.delete()
+                        .uri(objectUri(name))
+                        .retrieve()
+                        .toBodilessEntity()
+                        .thenReturn(true))
+                .defaultIfEmpty(false);
+    }
+
+    private Mono<ListPage> listPage(String prefix, String startAfter, String continuationToken, int limit) {
+        Map<String, String> query = new TreeMap<>();
+        query.put("list-type", "2");
+        query.put("max-keys", Integer.toString(Math.min(limit, MAX_KEYS)));
+        if (prefix != null && !prefix.isEmpty()) {
+            query.put("prefix", prefix);
+        }
+        if (startAfter != null) {
+            query.put("start-after", startAfter);
+        }
+        if (continuationToken != null) {
+            query.put("continuation-token", continuationToken);
+        }
+        String queryString = query.entrySet().stream()
+                .map(entry -> encode(entry.getKey()) + "=" + encode(entry.getValue()))
+                .collect(Collectors.joining("&"));
+        return webClient.get()
+                .uri(URI.create(bucketUrl + "?" + queryString))
+                .retrieve()
+                .bodyToMono(byte[].class)
+                .publishOn(Schedulers.boundedElastic())
+                .map(S3StorageBackend::parseListResult);
+    }
+
+    private static ListPage parseListResult(byte[] xml) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            // 不解析 DTD，防止 XXE
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setExpandEntityReferences(false);
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+            NodeList contents = document.getElementsByTagName("Contents");
+            List<StoredObject> objects = new ArrayList<>(contents.getLength());
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element element = (Element) contents.item(i);
+                String key = text(element, "Key");
+                String lastModified = text(element, "LastModified");
+                objects.add(new StoredObject(key, Long.parseLong(text(element, "Size")),
+                        lastModified == null ? 0 : Instant.parse(lastModified).toEpochMilli(), text(element, "ETag")));
+            }
+            boolean truncated = "true".equals(text(document.getDocumentElement(), "IsTruncated"));
+            return new ListPage(objects, truncated ? text(document.getDocumentElement(), "NextContinuationToken") : null);
+        } catch (Exception e) {
+            throw new IllegalStateException("解析 ListObjectsV2 响应失败", e);
+        }
+    }
+
+    private static String text(Element parent, String tag) {
+        NodeList nodes = parent.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    private URI objectUri(String name) {
+        return URI.create(bucketUrl + "/" + encode(name));
+    }
+
+    private static String etagOf(HttpHeaders headers, String sha256Hex) {
+        String etag = headers.getETag();
+        return etag != null ? etag : "\"" + sha256Hex + "\"";
+    }
+
+    /**
+     * RFC 3986 编码（SigV4 要求空格为 %20、保留 ~）
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    private record ListPage(List<StoredObject> objects, String nextToken) {
+    }
+
+    /**
+     * AWS Signature Version 4：签名 host、x-amz-content-sha256、x-amz-date 三个头。
+     * 请求体的摘要由调用方放在 x-amz-content-sha256 头里，没有时按空请求体计算。
+     */
+    static final class SigV4Signer implements ExchangeFilterFunction {
+
+        private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+        private static final String SIGNED_HEADERS = "host;" + CONTENT_SHA256_HEADER + ";" + DATE_HEADER;
+
+        private final String region;
+
+        private final String accessKey;
+
+        private final String secretKey;
+
+        SigV4Signer(String region, String accessKey, String secretKey) {
+            this.region = region;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+        }
+
+        @Override
+        public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+            String payloadHash = request.headers().getFirst(CONTENT_SHA256_HEADER);
+            if (payloadHash == null) {
+                payloadHash = EMPTY_SHA256;
+            }
+            Instant now = Instant.now();
+            String amzDate = AMZ_DATE.format(now);
+            String date = amzDate.substring(0, 8);
+            String scope = date + "/" + region + "/s3/aws4_request";
+            URI uri = request.url();
+            String host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+
+            String canonicalRequest = request.method().name() + "\n"
+                    + (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) + "\n"
+                    + canonicalQuery(uri.getRawQuery()) + "\n"
+                    + "host:" + host + "\n"
+                    + CONTENT_SHA256_HEADER + ":" + payloadHash + "\n"
+                    + DATE_HEADER + ":" + amzDate + "\n"
+                    + "\n"
+                    + SIGNED_HEADERS + "\n"
+                    + payloadHash;
+            String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonicalRequest);
+
+            byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+            key = hmac(key, region);
+            key = hmac(key, "s3");
+            key = hmac(key, "aws4_request");
+            String signature = HEX.formatHex(hmac(key, stringToSign));
+
+            String authorization = ALGORITHM + " Credential=" + accessKey + "/" + scope
+                    + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature;
+            String contentSha256 = payloadHash;
+            return next.exchange(ClientRequest.from(request)
+                    .headers(headers -> {
+                        headers.set(CONTENT_SHA256_HEADER, contentSha256);
+                        headers.set(DATE_HEADER, amzDate);
+                        headers.set(HttpHeaders.AUTHORIZATION, authorization);
+                    })
+                    .build());
+        }
+
+        /**
+         * 参数按名称排序，名称和值都重新做 RFC 3986 编码
+         */
+        private static String canonicalQuery(String rawQuery) {
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return "";
+            }
+            Map<String, String> params = new TreeMap<>();
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                params.put(encode(name), encode(value));
+            }
+            return params.entrySet().stream()
+                    .map(entry -> entry.getKey() + "=" + entry.getValue())
+                    .collect(Collectors.joining("&"));
+        }
+
+        private static String sha256Hex(String value) {
+            try {
+                return HEX.formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte[] hmac(byte[] key, String data) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package org.ewancle.downloadproxy.storage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * 段文件存储：大量小文件（缩略图）追加写进少数几个大的段文件（segment-000001.seg），
+ * 内存里只保留 名称 -> (段, 偏移, 长度) 的索引，不再为每个小文件占一个 inode。
+ * 段文件整体内存映射，读取直接切片映射内存，不复制；删除和覆盖只追加记录，旧数据留在段里（不做压缩整理）。
+ * 每条记录最后写 magic，启动时顺序扫描所有段重建索引，遇到没写完的记录即停止。
+ * 写入和删除在记录刷盘（files.storage.segment.fsync）之后才更新索引并完成，索引按追加顺序更新，
+ * 始终对应日志中已落盘的一段前缀；刷盘按段合并，一次刷到当前写位置，同时等待的记录一起落盘。
+ * 段、写位置和待生效队列由 append 的锁保护；索引项（Location）不可变，经 ConcurrentSkipListMap 发布给读者，
+ * 读者看到索引项时数据已经写进映射内存。
+ */
+@Component
+@ConditionalOnProperty(name = "files.storage.type", havingValue = "segment")
+public class SegmentStorageBackend implements StorageBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentStorageBackend.class);
+
+    private static final int MAGIC = 0x53454731; // "SEG1"
+
+    // 记录头：magic(4) type(1) nameLength(2) dataLength(4) lastModified(8) sha256(32)，之后是名称和数据
+    private static final int HEADER_SIZE = 51;
+
+    private static final byte PUT = 0;
+
+    private static final byte DELETE = 1;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxObjectSize;
+
+    private final NavigableMap<String, Location> index = new ConcurrentSkipListMap<>();
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    // 已追加、还没更新到索引的记录，按追加顺序排列；入队在 append 的锁里，出队在自身的锁里
+    private final Queue<PendingRecord> unpublished = new ArrayDeque<>();
+
+    // 当前追加的段，只在 append 里修改
+    private Segment active;
+
+    // 写入、删除是否等记录刷盘后才完成；false 时交给操作系统回写，关闭时再刷盘
+    @Value("${files.storage.segment.fsync:true}")
+    private boolean fsync;
+
+    public SegmentStorageBackend(@Value("${files.storage.segment.dir:segments}") String directory,
+                                 @Value("${files.storage.segment.segment-size:256MB}") DataSize segmentSize,
+                                 @Value("${files.storage.segment.max-object-size:16MB}") DataSize maxObjectSize) {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.segmentSize = (int) Math.min(segmentSize.toBytes(), Integer.MAX_VALUE);
+        this.maxObjectSize = (int) Math.min(maxObjectSize.toBytes(), this.segmentSize - HEADER_SIZE - 0xFFFF);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(path -> path.getFileName().toString().matches("segment-\\d+\\.seg")).sorted().toList();
+        }
+        // 重建在 bean 对外可见之前完成，仍然持有 append 的锁，段列表和写位置只在这把锁下修改
+        synchronized (this) {
+            for (Path file : files) {
+                Segment segment = new Segment(file, Files.size(file));
+                segments.add(segment);
+                replay(segment);
+            }
+            active = segments.isEmpty() ? newSegment() : segments.get(segments.size() - 1);
+        }
+        logger.info("段存储: {} 个段, {} 个对象", segments.size(), index.size());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 映射随进程退出释放，这里只把脏页刷盘
+        synchronized (this) {
+            segments.forEach(segment -> segment.buffer.force());
+        }
+    }
+
+    @Override
+    public Mono<StoredObject> put(String name, Flux<DataBuffer> content, Checksum checksum) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length == 0 || nameBytes.length > 0xFFFF) {
+            return Mono.error(new IllegalArgumentException("非法文件名: " + name));
+        }
+        return DataBufferUtils.join(checksum.tap(content), maxObjectSize)
+                .defaultIfEmpty(DefaultDataBufferFactory.sharedInstance.allocateBuffer(0))
+                .onErrorMap(DataBufferLimitException.class,
+                        e -> new IllegalArgumentException("超过段存储单个对象上限 " + maxObjectSize + " 字节"))
+                // 写映射内存可能触发缺页，不放在 Netty 线程上
+                .publishOn(Schedulers.boundedElastic())
+                .flatMap(data -> {
+                    PendingRecord record;
+                    try {
+                        record = append(PUT, name, nameBytes, data, checksum.sha256());
+                    } finally {
+                        DataBufferUtils.release(data);
+                    }
+                    return commit(record).thenReturn(toStoredObject(name, record.location));
+                });
+    }
+
+    @Override
+    public Flux<DataBuffer> get(String name, long position, long count, DataBufferFactory bufferFactory) {
+        Location location = index.get(name);
+        if (location == null) {
+            return Flux.error(new NoSuchFileException(name));
+        }
+        int start = (int) Math.min(position, location.length);
+        int length = (int) Math.min(count, location.length - start);
+        if (length <= 0) {
+            return Flux.empty();
+        }
+        // 段在进程内一直映射着，切片不需要引用计数
+        ByteBuffer slice = location.segment.buffer.slice(location.dataOffset + start, length).asReadOnlyBuffer();
+        return Flux.just(bufferFactory.wrap(slice));
+    }
+
+    @Override
+    public Mono<StoredObject> stat(String name) {
+        return Mono.justOrEmpty(index.get(name)).map(location -> toStoredObject(name, location));
+    }
+
+    @Override
+    public Flux<StoredObject> list(String prefix, String startAfter, int limit) {
+        String namePrefix = prefix == null ? "" : prefix;
+        NavigableMap<String, Location> view = namePrefix.isEmpty() ? index
+                : index.subMap(namePrefix, true, namePrefix + Character.MAX_VALUE, false);
+        if (startAfter != null) {
+            view = view.tailMap(startAfter, false);
+        }
+        return Flux.fromIterable(view.entrySet())
+                .take(limit, true)
+                .map(entry -> toStoredObject(entry.getKey(), entry.getValue()));
+    }
+
+    @Override
+    public Mono<Boolean> delete(String name) {
+        return Mono.fromCallable(() -> {
+                    if (!index.containsKey(name)) {
+                        return null;
+                    }
+                    // 写删除记录，重启后重放时也会删除
+                    return append(DELETE, name, name.getBytes(StandardCharsets.UTF_8),
+                            DefaultDataBufferFactory.sharedInstance.allocateBuffer(0), new byte[32]);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(record -> commit(record).thenReturn(true))
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * 追加一条记录：先写头和数据，最后写 magic（没写完的记录重启时会被忽略），排进待生效队列
+     */
+    private synchronized PendingRecord append(byte type, String key, byte[] name, DataBuffer data, byte[] sha256) {
+        int dataLength = data.readableByteCount();
+        int recordSize = HEADER_SIZE + name.length + dataLength;
+        if (active.writePosition + recordSize > active.capacity) {
+            active = newSegment();
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.writePosition;
+        long lastModified = System.currentTimeMillis();
+        buffer.put(position + 4, type)
+                .putShort(position + 5, (short) name.length)
+                .putInt(position + 7, dataLength)
+                .putLong(position + 11, lastModified)
+                .put(position + 19, sha256)
+                .put(position + HEADER_SIZE, name);
+        int dataOffset = position + HEADER_SIZE + name.length;
+        int offset = dataOffset;
+        try (DataBuffer.ByteBufferIterator iterator = data.readableByteBuffers()) {
+            while (iterator.hasNext()) {
+                ByteBuffer source = iterator.next();
+                int length = source.remaining();
+                buffer.put(offset, source, source.position(), length);
+                offset += length;
+            }
+        }
+        buffer.putInt(position, MAGIC);
+        active.writePosition = position + recordSize;
+        PendingRecord record = new PendingRecord(key, type == PUT
+                ? new Location(active, dataOffset, dataLength, lastModified, HEX.formatHex(sha256)) : null,
+                active, active.writePosition);
+        synchronized (unpublished) {
+            unpublished.add(record);
+        }
+        return record;
+    }
+
+    /**
+     * 刷盘后把记录标记为完成，等它（和之前的记录）更新到索引；调用方已经在 boundedElastic 上，
+     * 刷盘同步执行，不会被请求取消打断，否则排在后面的记录都无法生效
+     */
+    private Mono<Void> commit(PendingRecord record) {
+        Throwable error = null;
+        try {
+            if (fsync) {
+                force(record.segment, record.end);
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        complete(record, error);
+        return Mono.fromFuture(record.published, true);
+    }
+
+    /**
+     * 把段刷盘到至少 end：一次刷到当前写位置，等锁期间追加的记录一起落盘，之后到达的不用再刷
+     */
+    private static void force(Segment segment, int end) {
+        synchronized (segment) {
+            int from = segment.syncedPosition;
+            if (from >= end) {
+                return;
+            }
+            int to = segment.writePosition;
+            segment.buffer.force(from, to - from);
+            segment.syncedPosition = to;
+        }
+    }
+
+    /**
+     * 队首连续已完成的记录按追加顺序更新索引；刷盘失败的记录不更新索引，写入以错误结束
+     */
+    private void complete(PendingRecord record, Throwable error) {
+        List<PendingRecord> done = new ArrayList<>();
+        synchronized (unpublished) {
+            record.error = error;
+            record.completed = true;
+            PendingRecord head;
+            while ((head = unpublished.peek()) != null && head.completed) {
+                unpublished.poll();
+                if (head.error == null) {
+                    if (head.location != null) {
+                        index.put(head.key, head.location);
+                    } else {
+                        index.remove(head.key);
+                    }
+                }
+                done.add(head);
+            }
+        }
+        // 在锁外通知，后续操作不在锁里执行
+        for (PendingRecord head : done) {
+            if (head.error == null) {
+                head.published.complete(null);
+            } else {
+                head.published.completeExceptionally(head.error);
+            }
+        }
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= segment.capacity && buffer.getInt(position) == MAGIC) {
+            byte type = buffer.get(position + 4);
+            int nameLength = Short.toUnsignedInt(buffer.getShort(position + 5));
+            int dataLength = buffer.getInt(position + 7);
+            byte[] name = new byte[nameLength];
+            buffer.get(position + HEADER_SIZE, name);
+            String key = new String(name, StandardCharsets.UTF_8);
+            if (type == PUT) {
+                byte[] sha256 = new byte[32];
+                buffer.get(position + 19, sha256);
+                index.put(key, new Location(segment, position + HEADER_SIZE + nameLength, dataLength,
+                        buffer.getLong(position + 11), HEX.formatHex(sha256)));
+            } else {
+                index.remove(key);
+            }
+            position += HEADER_SIZE + nameLength + dataLength;
+        }
+        segment.writePosition = position;
+        segment.syncedPosition = position;
+    }
+
+    private Segment newSegment() {
+        Path file = directory.resolve(String.format("segment-%06d.seg", segments.size() + 1));
+        try {
+            Segment segment = new Segment(file, segmentSize);
+            segments.add(segment);
+            logger.info("新建段文件: {}", file);
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("创建段文件失败: " + file, e);
+        }
+    }
+
+    private static StoredObject toStoredObject(String name, Location location) {
+        return new StoredObject(name, location.length, location.lastModified, "\"" + location.sha256Hex + "\"");
+    }
+
+    /**
+     * 一个段文件，按固定大小整体映射（新段是稀疏文件，写到哪里才占用磁盘）
+     */
+    private static final class Segment {
+
+        private final int capacity;
+
+        private final MappedByteBuffer buffer;
+
+        // 在 append 的锁里修改，刷盘时不加这把锁读取，之前的记录都已写完
+        private volatile int writePosition;
+
+        // 已刷盘的位置，在段自身的锁里读写
+        private int syncedPosition;
+
+        Segment(Path file, long size) throws IOException {
+            this.capacity = (int) size;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    private record Location(Segment segment, int dataOffset, int length, long lastModified, String sha256Hex) {
+    }
+
+    /**
+     * 已追加、等待刷盘后更新索引的记录；location 为 null 表示删除
+     */
+    private static final class PendingRecord {
+
+        private final String key;
+
+        private final Location location;
+
+        private final Segment segment;
+
+        // 记录末尾在段内的位置
+        private final int end;
+
+        private final CompletableFuture<Void> published = new CompletableFuture<>();
+
+        // 以下两个字段在 unpublished 的锁里读写
+        private boolean completed;
+
+        private Throwable error;
+
+        PendingRecord(String key, Location location, Segment segment, int end) {
+            this.key = key;
+            this.location = location;
+            this.segment = segment;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.ewancle.downloadproxy.storage;
+
+import org.ewancle.downloadproxy.service.UploadChecksumService.Checksum;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 文件存储 SPI：FileController 只通过它读写文件，实际存在哪里由 files.storage.type 决定
+ * （local 本地目录 / segment 段文件 / s3 对象存储）
+ */
+public interface StorageBackend {
+
+    /**
+     * 流式写入，同名对象覆盖；数据按顺序累加到 checksum，调用方用它校验客户端提供的摘要
+     */
+    Mono<StoredObject> put(String name, Flux<DataBuffer> content, Checksum checksum);
+
+    /**
+     * 登记本地已经写好的完整文件（分片上传合并的结果）；默认读出来写入后端，再删除本地文件
+     */
+    default Mono<StoredObject> putFile(String name, Path file, Checksum checksum) {
+        return put(name, DataBufferUtils.read(file, DefaultDataBufferFactory.sharedInstance, 64 * 1024), checksum)
+                .flatMap(stored -> Mono.fromCallable(() -> Files.deleteIfExists(file))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .thenReturn(stored));
+    }
+
+    /**
+     * 读取 [position, position + count) 区间
+     */
+    Flux<DataBuffer> get(String name, long position, long count, DataBufferFactory bufferFactory);
+
+    /**
+     * 对象信息，不存在时为空
+     */
+    Mono<StoredObject> stat(String name);
+
+    /**
+     * 按名称升序列出 startAfter（不含）之后、以 prefix 开头的对象，最多 limit 个
+     */
+    Flux<StoredObject> list(String prefix, String startAfter, int limit);
+
+    /**
+     * 删除对象，返回是否存在
+     */
+    Mono<Boolean> delete(String name);
+}
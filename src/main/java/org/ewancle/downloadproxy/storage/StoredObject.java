@@ -0,0 +1,26 @@
+package org.ewancle.downloadproxy.storage;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+
+import java.nio.file.Path;
+
+/**
+ * 存储中的一个对象
+ *
+ * @param localPath 对象就是本地文件时的路径（可以零拷贝发送、内存映射读取），其它后端为 null
+ */
+public record StoredObject(String name, long size, long lastModified, MediaType mediaType, String etag,
+                           Path localPath) {
+
+    public StoredObject(String name, long size, long lastModified, String etag) {
+        this(name, size, lastModified, mediaTypeOf(name), etag, null);
+    }
+
+    /**
+     * 按扩展名判断 MIME
+     */
+    public static MediaType mediaTypeOf(String name) {
+        return MediaTypeFactory.getMediaType(name).orElse(MediaType.APPLICATION_OCTET_STREAM);
+    }
+}
@@ -0,0 +1,62 @@
+package org.ewancle.downloadproxy.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * 内存映射的解除：JDK 没有公开的 unmap，能用 sun.misc.Unsafe#invokeCleaner（jdk.unsupported 模块）时立即解除，
+ * 不能用时（JDK 移除、被安全策略禁止）什么也不做，映射在 buffer 不再被引用后由 GC 释放。
+ * 不使用 Netty 的 PlatformDependent 等内部 API。
+ */
+public final class MappedBufferUtils {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedBufferUtils.class);
+
+    // Unsafe.invokeCleaner(ByteBuffer)，不可用时为 null
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private MappedBufferUtils() {
+    }
+
+    /**
+     * 立即解除映射；调用后不能再访问 buffer 及其切片、副本
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null || buffer == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            logger.debug("解除内存映射失败，交给 GC 释放: {}", e.toString());
+        }
+    }
+
+    /**
+     * 是否能立即解除映射
+     */
+    public static boolean isSupported() {
+        return INVOKE_CLEANER != null;
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("不能立即解除内存映射，映射由 GC 释放: {}", e.toString());
+            return null;
+        }
+    }
+}
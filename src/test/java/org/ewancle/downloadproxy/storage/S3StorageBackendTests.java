@@ -0,0 +1,167 @@
+package org.ewancle.downloadproxy.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.ewancle.downloadproxy.service.UploadChecksumService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 用 JDK 自带的 HttpServer 模拟一个最小的 S3（PUT / GET Range / HEAD / DELETE / ListObjectsV2）
+ */
+class S3StorageBackendTests {
+
+    private final Map<String, byte[]> objects = new ConcurrentSkipListMap<>();
+
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+
+    private S3StorageBackend backend;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/bucket", this::handle);
+        server.start();
+        backend = new S3StorageBackend(WebClient.builder(), "http://127.0.0.1:" + server.getAddress().getPort(),
+                "us-east-1", "bucket", "AKIDEXAMPLE", "secret");
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void putGetListDelete() {
+        UploadChecksumService checksums = new UploadChecksumService(tempDir.toString());
+        StoredObject stored = backend.put("a.txt", content("hello "), checksums.begin()).block();
+        assertThat(stored.size()).isEqualTo(6);
+        backend.put("b.txt", content("hello world"), checksums.begin()).block();
+
+        assertThat(objects.get("b.txt")).isEqualTo("hello world".getBytes(StandardCharsets.UTF_8));
+        assertThat(authorizations).allMatch(value -> value.startsWith("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/"));
+
+        assertThat(backend.stat("b.txt").block().size()).isEqualTo(11);
+        assertThat(backend.stat("missing.txt").blockOptional()).isEmpty();
+
+        String range = DataBufferUtils.join(backend.get("b.txt", 6, 5, DefaultDataBufferFactory.sharedInstance))
+                .map(buffer -> buffer.toString(StandardCharsets.UTF_8))
+                .block();
+        assertThat(range).isEqualTo("world");
+
+        assertThat(backend.list("", null, 10).map(StoredObject::name).collectList().block())
+                .containsExactly("a.txt", "b.txt");
+        assertThat(backend.list("", "a.txt", 10).map(StoredObject::name).collectList().block())
+                .containsExactly("b.txt");
+
+        assertThat(backend.delete("a.txt").block()).isTrue();
+        assertThat(backend.delete("a.txt").block()).isFalse();
+        assertThat(objects).containsOnlyKeys("b.txt");
+    }
+
+    private static Flux<DataBuffer> content(String text) {
+        return Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        String path = exchange.getRequestURI().getPath();
+        String key = path.length() > "/bucket/".length() ? path.substring("/bucket/".length()) : null;
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        switch (exchange.getRequestMethod()) {
+            case "PUT" -> {
+                // 签名用的摘要必须和实际内容一致
+                String expected = HexFormat.of().formatHex(sha256(body));
+                if (!expected.equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+                    exchange.sendResponseHeaders(400, -1);
+                } else {
+                    objects.put(key, body);
+                    exchange.getResponseHeaders().set("ETag", "\"" + expected + "\"");
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            }
+            case "HEAD" -> {
+                byte[] object = objects.get(key);
+                if (object == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.length));
+                    exchange.getResponseHeaders().set("ETag", "\"etag\"");
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            }
+            case "DELETE" -> {
+                objects.remove(key);
+                exchange.sendResponseHeaders(204, -1);
+            }
+            case "GET" -> {
+                if (key == null) {
+                    list(exchange);
+                } else {
+                    byte[] object = objects.get(key);
+                    String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+                    int start = Integer.parseInt(range[0]);
+                    int end = Math.min(Integer.parseInt(range[1]), object.length - 1);
+                    exchange.sendResponseHeaders(206, end - start + 1);
+                    exchange.getResponseBody().write(object, start, end - start + 1);
+                }
+            }
+            default -> exchange.sendResponseHeaders(405, -1);
+        }
+        exchange.close();
+    }
+
+    private void list(HttpExchange exchange) throws IOException {
+        Map<String, String> query = new ConcurrentSkipListMap<>();
+        for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+            String[] parts = pair.split("=", 2);
+            query.put(parts[0], parts.length > 1 ? parts[1] : "");
+        }
+        String prefix = query.getOrDefault("prefix", "");
+        String startAfter = query.getOrDefault("start-after", "");
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><ListBucketResult>");
+        objects.forEach((name, object) -> {
+            if (name.startsWith(prefix) && name.compareTo(startAfter) > 0) {
+                xml.append("<Contents><Key>").append(name).append("</Key><LastModified>2024-01-01T00:00:00.000Z</LastModified>")
+                        .append("<ETag>\"etag\"</ETag><Size>").append(object.length).append("</Size></Contents>");
+            }
+        });
+        xml.append("<IsTruncated>false</IsTruncated></ListBucketResult>");
+        byte[] response = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}